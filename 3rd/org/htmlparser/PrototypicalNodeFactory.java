@@ -27,12 +27,13 @@
 package org.htmlparser;
 
 import java.io.Serializable;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
+import org.htmlparser.lexer.AttributeTable;
 import org.htmlparser.lexer.Page;
 import org.htmlparser.nodes.TextNode;
 import org.htmlparser.nodes.RemarkNode;
@@ -136,7 +137,7 @@ import org.htmlparser.tags.TitleTag;
 public class PrototypicalNodeFactory
     implements
         Serializable,
-        NodeFactory
+        TableNodeFactory
 {
     /**
      * The prototypical text node.
@@ -156,6 +157,7 @@ public class PrototypicalNodeFactory
     /**
      * The list of tags to return.
      * The list is keyed by tag name.
+     * A factory belongs to one parser, so the map is not synchronized.
      */
     protected Map mBlastocyst;
 
@@ -179,7 +181,7 @@ public class PrototypicalNodeFactory
         clear ();
         mText = new TextNode (null, 0, 0);
         mRemark = new RemarkNode (null, 0, 0);
-        mTag = new TagNode (null, 0, 0, null);
+        mTag = new TagNode (null, 0, 0, (Vector)null);
         if (!empty)
             registerTags ();
     }
@@ -246,7 +248,7 @@ public class PrototypicalNodeFactory
      */
     public void clear ()
     {
-        mBlastocyst = new Hashtable ();
+        mBlastocyst = new HashMap ();
     }
 
     /**
@@ -413,7 +415,7 @@ public class PrototypicalNodeFactory
     public void setTagPrototype (Tag tag)
     {
         if (null == tag)
-            mTag = new TagNode (null, 0, 0, null);
+            mTag = new TagNode (null, 0, 0, (Vector)null);
         else
             mTag = tag;
     }
@@ -488,58 +490,122 @@ public class PrototypicalNodeFactory
      */
     public Tag createTagNode (Page page, int start, int end, Vector attributes)
     {
-        Attribute attribute;
         String id;
+        Tag ret;
+
+        id = null;
+        if (0 != attributes.size ())
+            id = ((Attribute)attributes.elementAt (0)).getName ();
+        ret = clonePrototype (id, page, start, end);
+        if (null != ret)
+            ret.setAttributesEx (attributes);
+        else
+            ret = new TagNode (page, start, end, attributes);
+
+        return (ret);
+    }
+
+    /**
+     * Create a new tag node from the attributes as they were lexed.
+     * A tag derived from {@link TagNode} keeps a copy of the table and makes
+     * no attribute objects until they are asked for. The prototype is looked
+     * up by the {@link org.htmlparser.lexer.SymbolTable symbol} of the tag
+     * name, so no string is made for it.
+     * @param page The page the node is on.
+     * @param start The beginning position of the tag.
+     * @param end The ending positiong of the tag.
+     * @param attributes The attributes contained in this tag.
+     * @return A tag node comprising the indicated characters from the page.
+     */
+    public Tag createTagNode (Page page, int start, int end, AttributeTable attributes)
+    {
+        String id;
+        Tag ret;
+
+        id = attributes.isEndTag () ? null : attributes.getTagName ();
+        ret = cloneNamed (id, page, start, end);
+        if (ret instanceof TagNode)
+            ((TagNode)ret).setAttributeTable (attributes.copy ());
+        else if (null != ret)
+            ret.setAttributesEx (attributes.toVector ());
+        else
+            ret = new TagNode (page, start, end, attributes.copy ());
+
+        return (ret);
+    }
+
+    /**
+     * Clone the prototype registered for a tag name, or the generic tag
+     * prototype if there is none, and place it on the page.
+     * @param id The tag name as found, or <code>null</code>.
+     * @param page The page the node is on.
+     * @param start The beginning position of the tag.
+     * @param end The ending positiong of the tag.
+     * @return The new tag, without attributes, or <code>null</code> if
+     * no prototype could be cloned.
+     */
+    protected Tag clonePrototype (String id, Page page, int start, int end)
+    {
+        if (null != id)
+        {
+            id = id.toUpperCase (Locale.ENGLISH);
+            if (id.startsWith ("/"))
+                id = null;
+            else if (id.endsWith ("/"))
+                id = id.substring (0, id.length () - 1);
+        }
+
+        return (cloneNamed (id, page, start, end));
+    }
+
+    /**
+     * Clone the prototype registered for a tag name, or the generic tag
+     * prototype if there is none, and place it on the page.
+     * @param name The tag name as {@link org.htmlparser.Tag#getTagName}
+     * gives it, or <code>null</code> for the generic tag.
+     * @param page The page the node is on.
+     * @param start The beginning position of the tag.
+     * @param end The ending positiong of the tag.
+     * @return The new tag, without attributes, or <code>null</code> if
+     * no prototype could be cloned.
+     */
+    protected Tag cloneNamed (String name, Page page, int start, int end)
+    {
         Tag prototype;
         Tag ret;
 
         ret = null;
 
-        if (0 != attributes.size ())
+        if (null != name)
         {
-            attribute = (Attribute)attributes.elementAt (0);
-            id = attribute.getName ();
-            if (null != id)
-            {
+            prototype = (Tag)mBlastocyst.get (name);
+            if (null != prototype)
                 try
                 {
-                    id = id.toUpperCase (Locale.ENGLISH);
-                    if (!id.startsWith ("/"))
-                    {
-                        if (id.endsWith ("/"))
-                            id = id.substring (0, id.length () - 1);
-                        prototype = (Tag)mBlastocyst.get (id);
-                        if (null != prototype)
-                        {
-                            ret = (Tag)prototype.clone ();
-                            ret.setPage (page);
-                            ret.setStartPosition (start);
-                            ret.setEndPosition (end);
-                            ret.setAttributesEx (attributes);
-                        }
-                    }
+                    ret = (Tag)prototype.clone ();
                 }
                 catch (CloneNotSupportedException cnse)
                 {
                     // default to creating a generic one
                 }
-            }
         }
         if (null == ret)
         {   // generate a generic node
             try
             {
                 ret = (Tag)getTagPrototype ().clone ();
-                ret.setPage (page);
-                ret.setStartPosition (start);
-                ret.setEndPosition (end);
-                ret.setAttributesEx (attributes);
             }
             catch (CloneNotSupportedException cnse)
             {
-                ret = new TagNode (page, start, end, attributes);
+                ret = null;
             }
         }
+        if (null != ret)
+        {
+            ret.setPage (page);
+            ret.setStartPosition (start);
+            ret.setEndPosition (end);
+        }
 
         return (ret);
     }
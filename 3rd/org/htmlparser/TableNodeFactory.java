@@ -0,0 +1,54 @@
+// HTMLParser Library $Name: v1_6 $ - A java-based parser for HTML
+// http://sourceforge.org/projects/htmlparser
+// Copyright (C) 2003 Derrick Oswald
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//
+
+package org.htmlparser;
+
+import org.htmlparser.lexer.AttributeTable;
+import org.htmlparser.lexer.Page;
+import org.htmlparser.util.ParserException;
+
+/**
+ * A node factory that takes the attributes of a tag as the lexer found
+ * them, without an attribute object for each.
+ * The lexer hands tags to a factory of this kind through
+ * {@link #createTagNode(Page,int,int,AttributeTable)}, and to any other
+ * factory through the vector method of {@link NodeFactory}.
+ */
+public interface TableNodeFactory
+    extends
+        NodeFactory
+{
+    /**
+     * Create a new tag node.
+     * Note that the table holds at least one slot,
+     * which is the tag name (standalone attribute) at position zero.
+     * @param page The page the node is on.
+     * @param start The beginning position of the tag.
+     * @param end The ending positiong of the tag.
+     * @param attributes The attributes contained in this tag, which the
+     * lexer fills again for the next tag. A node that keeps them must keep
+     * a {@link AttributeTable#copy copy}.
+     * @throws ParserException If there is a problem encountered
+     * when creating the node.
+     * @return A tag node comprising the indicated characters from the page.
+     */
+    Tag createTagNode (Page page, int start, int end, AttributeTable attributes)
+        throws
+            ParserException;
+}
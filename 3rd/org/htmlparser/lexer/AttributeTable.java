@@ -0,0 +1,395 @@
+// HTMLParser Library $Name: v1_6 $ - A java-based parser for HTML
+// http://sourceforge.org/projects/htmlparser
+// Copyright (C) 2004 Derrick Oswald
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//
+
+package org.htmlparser.lexer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Vector;
+
+import org.htmlparser.util.LocalVector;
+
+/**
+ * The attributes of a tag as the lexer found them.
+ * Each slot, the tag name first and then whitespace or attributes in the
+ * order they appear, is six integers in one array: where the name starts
+ * and ends, where the value starts and ends and the quote character, the
+ * same positions a {@link PageAttribute} keeps, and a hash of the name
+ * folded to lower case, which the lexer works out as it reads the name.
+ * No object is made for a slot until the attributes are asked for as a
+ * <code>Vector</code>, and a name is looked up by comparing hashes first.
+ * The lexer fills the same table for every tag, a node that keeps the
+ * attributes keeps a {@link #copy copy}.
+ */
+public class AttributeTable
+    implements
+        Serializable
+{
+    /**
+     * The number of integers a slot takes.
+     */
+    private static final int SLOT = 6;
+
+    /**
+     * The page the tag is on.
+     */
+    protected Page mPage;
+
+    /**
+     * Name start, name end, value start, value end, quote and name hash of
+     * each slot.
+     */
+    protected int[] mSlots;
+
+    /**
+     * The number of slots.
+     */
+    protected int mCount;
+
+    /**
+     * Create an empty table for a tag on the given page.
+     * @param page The page the tag is on.
+     */
+    public AttributeTable (Page page)
+    {
+        this (page, new int[16 * SLOT]);
+    }
+
+    /**
+     * Create an empty table over the given slot array.
+     * @param page The page the tag is on.
+     * @param slots The array for the slots.
+     */
+    protected AttributeTable (Page page, int[] slots)
+    {
+        mPage = page;
+        mSlots = slots;
+        mCount = 0;
+    }
+
+    /**
+     * Make a table of the same slots, sized to fit them.
+     * @return A table that does not change when this one is reused.
+     */
+    public AttributeTable copy ()
+    {
+        AttributeTable ret;
+
+        ret = new AttributeTable (mPage, new int[mCount * SLOT]);
+        System.arraycopy (mSlots, 0, ret.mSlots, 0, mCount * SLOT);
+        ret.mCount = mCount;
+
+        return (ret);
+    }
+
+    /**
+     * Empty the table for the next tag.
+     * @param page The page the next tag is on.
+     */
+    public void reset (Page page)
+    {
+        mPage = page;
+        mCount = 0;
+    }
+
+    /**
+     * Add a slot, with the positions the
+     * {@link PageAttribute#PageAttribute(Page,int,int,int,int,char) PageAttribute constructor}
+     * takes.
+     * @param name_start The starting offset of the name, or -1 for whitespace.
+     * @param name_end The ending offset of the name.
+     * @param value_start The starting offset of the value.
+     * @param value_end The ending offset of the value, or -1 for none.
+     * @param quote The quote character, or zero.
+     * @param hash The name folded by {@link #hash(int,char)}, zero for
+     * whitespace.
+     */
+    public void add (int name_start, int name_end, int value_start, int value_end, char quote, int hash)
+    {
+        int[] slots;
+        int base;
+
+        if ((mCount + 1) * SLOT > mSlots.length)
+        {
+            slots = new int[Math.max (4 * SLOT, mSlots.length * 2)];
+            System.arraycopy (mSlots, 0, slots, 0, mCount * SLOT);
+            mSlots = slots;
+        }
+        base = mCount * SLOT;
+        mSlots[base] = name_start;
+        mSlots[base + 1] = name_end;
+        mSlots[base + 2] = value_start;
+        mSlots[base + 3] = value_end;
+        mSlots[base + 4] = quote;
+        mSlots[base + 5] = hash;
+        mCount++;
+    }
+
+    /**
+     * Get the number of slots, the tag name and whitespace included.
+     * @return The number of slots.
+     */
+    public int size ()
+    {
+        return (mCount);
+    }
+
+    /**
+     * Get the page the tag is on.
+     * @return The page.
+     */
+    public Page getPage ()
+    {
+        return (mPage);
+    }
+
+    /**
+     * Get the starting offset of a name.
+     * @param index The slot.
+     * @return The offset, or -1 for a whitespace slot.
+     */
+    public int getNameStart (int index)
+    {
+        return (mSlots[index * SLOT]);
+    }
+
+    /**
+     * Get the ending offset of a name.
+     * @param index The slot.
+     * @return The offset.
+     */
+    public int getNameEnd (int index)
+    {
+        return (mSlots[index * SLOT + 1]);
+    }
+
+    /**
+     * Get the starting offset of a value.
+     * @param index The slot.
+     * @return The offset.
+     */
+    public int getValueStart (int index)
+    {
+        return (mSlots[index * SLOT + 2]);
+    }
+
+    /**
+     * Get the ending offset of a value.
+     * @param index The slot.
+     * @return The offset, or -1 if the slot has no value.
+     */
+    public int getValueEnd (int index)
+    {
+        return (mSlots[index * SLOT + 3]);
+    }
+
+    /**
+     * Get the quote character of a value.
+     * @param index The slot.
+     * @return The quote, or zero if the value is not quoted.
+     */
+    public char getQuote (int index)
+    {
+        return ((char)mSlots[index * SLOT + 4]);
+    }
+
+    /**
+     * Get a name as the page has it.
+     * @param index The slot.
+     * @return The name {@link SymbolTable symbol}, or <code>null</code> for
+     * a whitespace slot.
+     */
+    public String getName (int index)
+    {
+        int start;
+
+        start = getNameStart (index);
+
+        return ((0 <= start) ? SymbolTable.getName (mPage, start, getNameEnd (index)) : null);
+    }
+
+    /**
+     * Get the tag name, in upper case and without slashes.
+     * @return The tag name {@link SymbolTable symbol}, or <code>null</code>
+     * if the tag holds nothing or only whitespace.
+     */
+    public String getTagName ()
+    {
+        int start;
+
+        start = (0 != mCount) ? getNameStart (0) : -1;
+
+        return ((0 <= start) ? SymbolTable.getTagName (mPage, start, getNameEnd (0)) : null);
+    }
+
+    /**
+     * Check for an end tag, one whose name starts with a slash.
+     * @return <code>true</code> if the tag is an end tag.
+     */
+    public boolean isEndTag ()
+    {
+        int start;
+        boolean ret;
+
+        ret = false;
+        start = (0 != mCount) ? getNameStart (0) : -1;
+        if ((0 <= start) && (start < getNameEnd (0)))
+            try
+            {
+                ret = '/' == mPage.getSource ().getCharacter (start);
+            }
+            catch (IOException ioe)
+            {
+                // a source that cannot give the name back is no end tag
+            }
+
+        return (ret);
+    }
+
+    /**
+     * Get a value as the page has it.
+     * @param index The slot.
+     * @return The value, or <code>null</code> if the slot has none.
+     */
+    public String getValue (int index)
+    {
+        int end;
+
+        end = getValueEnd (index);
+
+        return ((0 <= end) ? mPage.getText (getValueStart (index), end) : null);
+    }
+
+    /**
+     * Find an attribute by name.
+     * @param name The name, case insensitive.
+     * @return The slot of the first attribute with that name, the tag name
+     * included, or -1 if there is none.
+     */
+    public int indexOf (String name)
+    {
+        return (indexOf (name, 0));
+    }
+
+    /**
+     * Find an attribute by name, from a given slot on.
+     * @param name The name, case insensitive.
+     * @param from The first slot to look at.
+     * @return The slot of the first attribute with that name, or -1.
+     */
+    public int indexOf (String name, int from)
+    {
+        int hash;
+        int ret;
+
+        ret = -1;
+        hash = 0;
+        for (int i = 0; i < name.length (); i++)
+            hash = hash (hash, name.charAt (i));
+        for (int i = from; (-1 == ret) && (i < mCount); i++)
+            if ((mSlots[i * SLOT + 5] == hash) && nameEquals (i, name))
+                ret = i;
+
+        return (ret);
+    }
+
+    /**
+     * Make an attribute object for a slot.
+     * @param index The slot.
+     * @return A page attribute with the positions of the slot.
+     */
+    public PageAttribute getAttribute (int index)
+    {
+        return (new PageAttribute (mPage, getNameStart (index),
+            getNameEnd (index), getValueStart (index), getValueEnd (index),
+            getQuote (index)));
+    }
+
+    /**
+     * Make the attribute vector a tag keeps once it is asked for.
+     * @return A new vector with one {@link PageAttribute} a slot.
+     */
+    public Vector toVector ()
+    {
+        Vector ret;
+
+        ret = new LocalVector (Math.max (10, mCount));
+        for (int i = 0; i < mCount; i++)
+            ret.addElement (getAttribute (i));
+
+        return (ret);
+    }
+
+    /**
+     * Compare a name on the page against one given.
+     * @param index The slot.
+     * @param name The name, case insensitive.
+     * @return <code>true</code> if they are the same.
+     */
+    protected boolean nameEquals (int index, String name)
+    {
+        int start;
+        int length;
+        Source source;
+        boolean ret;
+
+        start = getNameStart (index);
+        length = getNameEnd (index) - start;
+        ret = (0 <= start) && (length == name.length ());
+        if (ret)
+        {
+            source = mPage.getSource ();
+            try
+            {
+                for (int i = 0; ret && (i < length); i++)
+                    ret = fold (source.getCharacter (start + i)) == fold (name.charAt (i));
+            }
+            catch (IOException ioe)
+            {
+                // a source that cannot give the name back matches nothing
+                ret = false;
+            }
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Add a character to the hash of a name.
+     * @param hash The hash of the characters before, zero to start.
+     * @param ch The next character of the name.
+     * @return The hash of the name folded to lower case so far.
+     */
+    public static int hash (int hash, char ch)
+    {
+        return (31 * hash + fold (ch));
+    }
+
+    /**
+     * Fold an ASCII letter to lower case.
+     * Names are compared on the raw page characters, which for a
+     * {@link ByteSource} are bytes, so only ASCII is folded.
+     * @param ch The character.
+     * @return The character in lower case if it is an ASCII letter.
+     */
+    protected static char fold (char ch)
+    {
+        return ((('A' <= ch) && (ch <= 'Z')) ? (char)(ch + ('a' - 'A')) : ch);
+    }
+}
@@ -0,0 +1,524 @@
+// HTMLParser Library $Name: v1_6 $ - A java-based parser for HTML
+// http://sourceforge.org/projects/htmlparser
+// Copyright (C) 2004 Derrick Oswald
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//
+
+package org.htmlparser.lexer;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.htmlparser.util.ParserException;
+
+/**
+ * A source of characters over the undecoded bytes of a page.
+ * For a character set that writes every ASCII character as that one byte,
+ * and never uses a byte below 0x40 inside a longer sequence, the markup
+ * the lexer looks for is the same in the bytes as in the characters.
+ * This source hands each byte to the lexer as one character, so offsets
+ * are byte offsets, and decodes only the pieces asked for by
+ * {@link #getString getString}, such as attribute values and text.
+ * The page is neither copied nor decoded as a whole.
+ */
+public class ByteSource
+    extends
+        Source
+{
+    /**
+     * The names of the character sets this source can read.
+     */
+    private static final String[] ASCII_COMPATIBLE =
+    {
+        "UTF-8", "US-ASCII", "GBK", "GB2312", "GB18030", "Big5", "Big5-HKSCS",
+        "EUC-JP", "EUC-KR", "Shift_JIS", "windows-31j", "KOI8-R", "KOI8-U",
+    };
+
+    /**
+     * The bytes of the page.
+     */
+    protected byte[] mBuffer;
+
+    /**
+     * The offset of the first byte of the page in the buffer.
+     */
+    protected int mStart;
+
+    /**
+     * The number of bytes of the page.
+     */
+    protected int mLength;
+
+    /**
+     * The current offset, relative to the first byte.
+     */
+    protected int mOffset;
+
+    /**
+     * The bookmark.
+     */
+    protected int mMark;
+
+    /**
+     * The name of the character set pieces are decoded with.
+     */
+    protected String mEncoding;
+
+    /**
+     * The character set pieces are decoded with.
+     */
+    protected transient Charset mCharset;
+
+    /**
+     * Construct a source over a part of a byte array.
+     * The array is used as it is, not copied.
+     * @param buffer The bytes of the page.
+     * @param start The offset of the first byte of the page.
+     * @param length The number of bytes of the page.
+     * @param character_set The character set of the bytes, which must be one
+     * {@link #isSupported isSupported} accepts.
+     * @exception IllegalArgumentException If the character set cannot be
+     * read byte by byte.
+     */
+    public ByteSource (byte[] buffer, int start, int length, String character_set)
+    {
+        if (!isSupported (character_set))
+            throw new IllegalArgumentException (
+                "cannot read " + character_set + " byte by byte");
+        mBuffer = buffer;
+        mStart = start;
+        mLength = length;
+        mOffset = 0;
+        mMark = -1;
+        mEncoding = Charset.forName (character_set).name ();
+        mCharset = Charset.forName (mEncoding);
+    }
+
+    /**
+     * Tell whether pages in a character set can be read byte by byte.
+     * That is UTF-8, the ISO-8859 and windows-125x sets and the double byte
+     * sets of east Asia, but not UTF-16, EBCDIC or the ISO-2022 family.
+     * @param character_set The name of a character set.
+     * @return <code>true</code> if a ByteSource can read the character set.
+     */
+    public static boolean isSupported (String character_set)
+    {
+        String name;
+
+        try
+        {
+            if (!Charset.isSupported (character_set))
+                return (false);
+            name = Charset.forName (character_set).name ();
+        }
+        catch (IllegalArgumentException iae)
+        {
+            return (false);
+        }
+        if (name.startsWith ("ISO-8859-") || name.startsWith ("windows-125"))
+            return (true);
+        for (int i = 0; i < ASCII_COMPATIBLE.length; i++)
+            if (ASCII_COMPATIBLE[i].equals (name))
+                return (true);
+
+        return (false);
+    }
+
+    /**
+     * Get the encoding being used to convert characters.
+     * @return The current encoding.
+     */
+    public String getEncoding ()
+    {
+        return (mEncoding);
+    }
+
+    /**
+     * Set the encoding to the given character set.
+     * The bytes are the same whatever they are decoded with, so the
+     * characters already read stay valid and nothing is read again.
+     * @param character_set The character set to use to convert characters.
+     * @exception ParserException If the character set cannot be read
+     * byte by byte.
+     */
+    public void setEncoding (String character_set)
+        throws
+            ParserException
+    {
+        if (!isSupported (character_set))
+            throw new ParserException (
+                "cannot switch to " + character_set + " byte by byte");
+        mEncoding = Charset.forName (character_set).name ();
+        mCharset = Charset.forName (mEncoding);
+    }
+
+    //
+    // Reader overrides
+    //
+
+    /**
+     * Does nothing.
+     * It's supposed to close the source, but use destroy() instead.
+     * @exception IOException <em>not used</em>
+     * @see #destroy
+     */
+    public void close () throws IOException
+    {
+    }
+
+    /**
+     * Read a single byte as a character.
+     * @return The byte read, in the range 0 to 255, or {@link #EOF EOF} if
+     * the source is exhausted.
+     * @exception IOException If the source is closed.
+     */
+    public int read () throws IOException
+    {
+        int ret;
+
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        else if (mOffset >= mLength)
+            ret = EOF;
+        else
+        {
+            ret = mBuffer[mStart + mOffset] & 0xff;
+            mOffset++;
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Read bytes as characters into a portion of an array.
+     * @param cbuf Destination buffer
+     * @param off Offset at which to start storing characters
+     * @param len Maximum number of characters to read
+     * @return The number of characters read, or {@link #EOF EOF} if the
+     * source is exhausted.
+     * @exception IOException If the source is closed.
+     */
+    public int read (char[] cbuf, int off, int len) throws IOException
+    {
+        int ret;
+
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        else if (mOffset >= mLength)
+            ret = EOF;
+        else
+        {
+            if (len > mLength - mOffset)
+                len = mLength - mOffset;
+            for (int i = 0; i < len; i++)
+                cbuf[off + i] = (char)(mBuffer[mStart + mOffset + i] & 0xff);
+            mOffset += len;
+            ret = len;
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Read bytes as characters into an array.
+     * @param cbuf Destination buffer.
+     * @return The number of characters read, or {@link #EOF EOF} if the
+     * source is exhausted.
+     * @exception IOException If the source is closed.
+     */
+    public int read (char[] cbuf) throws IOException
+    {
+        return (read (cbuf, 0, cbuf.length));
+    }
+
+    /**
+     * Tell whether this source is ready to be read.
+     * @return <code>true</code> if a byte is left to read.
+     * @exception IOException If the source is closed.
+     */
+    public boolean ready () throws IOException
+    {
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        return (mOffset < mLength);
+    }
+
+    /**
+     * Reset the source.
+     * Repositions the read point to begin at zero or the last mark.
+     * @exception IllegalStateException If the source is closed.
+     */
+    public void reset ()
+        throws
+            IllegalStateException
+    {
+        if (null == mBuffer)
+            throw new IllegalStateException ("source is closed");
+        else
+            if (-1 != mMark)
+                mOffset = mMark;
+            else
+                mOffset = 0;
+    }
+
+    /**
+     * Tell whether this source supports the mark() operation.
+     * @return <code>true</code>.
+     */
+    public boolean markSupported ()
+    {
+        return (true);
+    }
+
+    /**
+     * Mark the present position in the source.
+     * @param readAheadLimit <em>Not used.</em>
+     * @exception IOException If the source is closed.
+     */
+    public void mark (int readAheadLimit) throws IOException
+    {
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        mMark = mOffset;
+    }
+
+    /**
+     * Skip bytes.
+     * @param n The number of bytes to skip.
+     * @return The number of bytes actually skipped
+     * @exception IllegalArgumentException If <code>n</code> is negative.
+     * @exception IOException If the source is closed.
+     */
+    public long skip (long n)
+        throws
+            IOException,
+            IllegalArgumentException
+    {
+        long ret;
+
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        if (0 > n)
+            throw new IllegalArgumentException ("cannot skip backwards");
+        else
+        {
+            if (mOffset >= mLength)
+                n = 0L;
+            else if (n > mLength - mOffset)
+                n = mLength - mOffset;
+            mOffset += n;
+            ret = n;
+        }
+
+        return (ret);
+    }
+
+    //
+    // Methods not in your Daddy's Reader
+    //
+
+    /**
+     * Undo the read of a single byte.
+     * @exception IOException If no bytes have been read or the source
+     * is closed.
+     */
+    public void unread () throws IOException
+    {
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        else if (mOffset <= 0)
+            throw new IOException ("can't unread no characters");
+        else
+            mOffset--;
+    }
+
+    /**
+     * Retrieve a byte again as a character.
+     * @param offset The offset of the byte.
+     * @return The byte at <code>offset</code>, in the range 0 to 255.
+     * @exception IOException If the offset is beyond {@link #offset()} or the
+     * source is closed.
+     */
+    public char getCharacter (int offset) throws IOException
+    {
+        char ret;
+
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        else if (offset >= mOffset)
+            throw new IOException ("read beyond current offset");
+        else
+            ret = (char)(mBuffer[mStart + offset] & 0xff);
+
+        return (ret);
+    }
+
+    /**
+     * Retrieve bytes again as characters, one character a byte.
+     * Use {@link #getString getString} for the decoded text.
+     * @param array The array of characters.
+     * @param offset The starting position in the array where characters are to be placed.
+     * @param start The starting position, zero based.
+     * @param end The ending position
+     * (exclusive, i.e. the byte at the ending position is not included),
+     * zero based.
+     * @exception IOException If the start or end is beyond {@link #offset()}
+     * or the source is closed.
+     */
+    public void getCharacters (char[] array, int offset, int start, int end) throws IOException
+    {
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        else
+        {
+            if (end > mOffset)
+                throw new IOException ("read beyond current offset");
+            else
+                for (int i = start; i < end; i++)
+                    array[offset + i - start] = (char)(mBuffer[mStart + i] & 0xff);
+        }
+    }
+
+    /**
+     * Retrieve a string, decoded in the current character set.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes to decode.
+     * @return A string with the characters the bytes stand for, which may
+     * be fewer than <code>length</code>.
+     * @exception IOException If the offset or (offset + length) is beyond
+     * {@link #offset()} or the source is closed.
+     */
+    public String getString (int offset, int length) throws IOException
+    {
+        String ret;
+
+        if (null == mBuffer)
+            throw new IOException ("source is closed");
+        else
+        {
+            if (offset + length > mOffset)
+                throw new IOException ("read beyond end of string");
+            else
+                ret = new String (mBuffer, mStart + offset, length, getCharset ());
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Append decoded characters already read into a <code>StringBuffer</code>.
+     * @param buffer The buffer to append to.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes to decode.
+     * @exception IOException If the source is closed or an attempt is made to
+     * read beyond {@link #offset()}.
+     */
+    public void getCharacters (StringBuffer buffer, int offset, int length) throws IOException
+    {
+        buffer.append (getString (offset, length));
+    }
+
+    /**
+     * Close the source.
+     * Once a source has been closed, further reads throw an IOException.
+     * Closing a previously-closed source, however, has no effect.
+     * @exception IOException <em>Not thrown</em>
+     */
+    public void destroy () throws IOException
+    {
+        mBuffer = null;
+    }
+
+    /**
+     * Get the position (in bytes).
+     * @return The number of bytes that have already been read, or
+     * {@link #EOF EOF} if the source is closed.
+     */
+    public int offset ()
+    {
+        int ret;
+
+        if (null == mBuffer)
+            ret = EOF;
+        else
+            ret = mOffset;
+
+        return (ret);
+    }
+
+    /**
+     * Get the number of available bytes.
+     * @return The number of bytes that can be read or zero if the source
+     * is closed.
+     */
+    public int available ()
+    {
+        int ret;
+
+        if (null == mBuffer)
+            ret = 0;
+        else
+            ret = mLength - mOffset;
+
+        return (ret);
+    }
+
+    /**
+     * Read a run of characters straight from the byte array.
+     * @param stops Which characters below 128 end the run.
+     * @param lines The index of line starts to add to.
+     * @return The number of characters read.
+     * @exception IOException If the source is closed.
+     * @see Source#scan
+     */
+    public int scan (boolean[] stops, PageIndex lines)
+        throws
+            IOException
+    {
+        byte[] buffer;
+        int start;
+        int offset;
+        int ch;
+
+        buffer = mBuffer;
+        if (null == buffer)
+            throw new IOException ("source is closed");
+        start = mOffset;
+        for (offset = start; offset < mLength; offset++)
+        {
+            ch = buffer[mStart + offset] & 0xff;
+            if (ch < 128)
+                if (stops[ch])
+                    break;
+                else if ('\n' == ch)
+                    lines.add (offset + 1);
+        }
+        mOffset = offset;
+
+        return (offset - start);
+    }
+
+    /**
+     * The character set, looked up again after deserialization.
+     * @return The character set pieces are decoded with.
+     */
+    protected Charset getCharset ()
+    {
+        if (null == mCharset)
+            mCharset = Charset.forName (mEncoding);
+
+        return (mCharset);
+    }
+}
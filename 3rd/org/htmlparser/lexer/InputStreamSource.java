@@ -696,4 +696,41 @@ public class InputStreamSource
 
         return (ret);
     }
+
+    /**
+     * Read a run of characters straight from the buffer.
+     * Only characters already in the buffer are read, the next
+     * {@link #read()} fills it.
+     * @param stops Which characters below 128 end the run.
+     * @param lines The index of line starts to add to.
+     * @return The number of characters read.
+     * @exception IOException If the source is closed.
+     * @see Source#scan
+     */
+    public int scan (boolean[] stops, PageIndex lines)
+        throws
+            IOException
+    {
+        char[] buffer;
+        int start;
+        int offset;
+        char ch;
+
+        if (null == mStream)
+            throw new IOException ("source is closed");
+        buffer = mBuffer;
+        start = mOffset;
+        for (offset = start; offset < mLevel; offset++)
+        {
+            ch = buffer[offset];
+            if (ch < 128)
+                if (stops[ch])
+                    break;
+                else if ('\n' == ch)
+                    lines.add (offset + 1);
+        }
+        mOffset = offset;
+
+        return (offset - start);
+    }
 }
@@ -34,12 +34,14 @@ import java.util.Vector;
 import org.htmlparser.Node;
 import org.htmlparser.NodeFactory;
 import org.htmlparser.Remark;
+import org.htmlparser.TableNodeFactory;
 import org.htmlparser.Text;
 import org.htmlparser.Tag;
 import org.htmlparser.http.ConnectionManager;
 import org.htmlparser.nodes.RemarkNode;
 import org.htmlparser.nodes.TextNode;
 import org.htmlparser.nodes.TagNode;
+import org.htmlparser.util.LocalVector;
 import org.htmlparser.util.ParserException;
 
 /**
@@ -56,7 +58,7 @@ import org.htmlparser.util.ParserException;
 public class Lexer
     implements
         Serializable,
-        NodeFactory
+        TableNodeFactory
 {
     // Please don't change the formatting of the version variables below.
     // This is done so as to facilitate ant script processing.
@@ -116,6 +118,16 @@ public class Lexer
      */
     protected NodeFactory mFactory;
 
+    /**
+     * The attributes of the tag being lexed, reused for every tag.
+     */
+    protected transient AttributeTable mAttributes;
+
+    /**
+     * The state bookmarks of the tag being lexed, reused for every tag.
+     */
+    protected transient int[] mBookmarks;
+
     /**
      * Line number to trigger on.
      * This is tested on each <code>nextNode()</code> call, as a debugging aid.
@@ -126,6 +138,41 @@ public class Lexer
      */
     protected static int mDebugLineTrigger = -1;
 
+    /**
+     * The characters that need a look in a string.
+     */
+    protected static final boolean[] mStringStops = Page.stops ("<\u001b");
+
+    /**
+     * The characters that need a look in a quote smart string.
+     */
+    protected static final boolean[] mQuoteSmartStringStops = Page.stops ("<\u001b'\"\\/");
+
+    /**
+     * The characters that need a look in CDATA.
+     */
+    protected static final boolean[] mCdataStops = Page.stops ("<");
+
+    /**
+     * The characters that need a look in quote smart CDATA.
+     */
+    protected static final boolean[] mQuoteSmartCdataStops = Page.stops ("<'\"\\/\n");
+
+    /**
+     * The characters that need a look in a remark.
+     */
+    protected static final boolean[] mRemarkStops = Page.stops ("-");
+
+    /**
+     * The characters that need a look in a single quoted attribute value.
+     */
+    protected static final boolean[] mSingleQuoteStops = Page.stops ("'");
+
+    /**
+     * The characters that need a look in a double quoted attribute value.
+     */
+    protected static final boolean[] mDoubleQuoteStops = Page.stops ("\"");
+
     //
     // Static methods
     //
@@ -304,6 +351,19 @@ public class Lexer
         setCursor (new Cursor (getPage (), 0));
     }
 
+    /**
+     * Start parsing another page from its beginning.
+     * The cursor, the attribute table and the node factory of this lexer
+     * are kept, so a lexer can be reused for one page after another.
+     * @param page The page that nodes will be read from.
+     */
+    public void reset (Page page)
+    {
+        setPage (page);
+        mCursor.mPage = page;
+        mCursor.setPosition (0);
+    }
+
     /**
      * Get the next node from the source.
      * @return A Remark, Text or Tag, or <code>null</code> if no
@@ -457,6 +517,8 @@ public class Lexer
 
         while (!done)
         {
+            if (0 == state)
+                mPage.scan (mCursor, quotesmart ? mQuoteSmartCdataStops : mCdataStops);
             ch = mPage.getCharacter (mCursor);
             switch (state)
             {
@@ -661,6 +723,19 @@ public class Lexer
         return (new TagNode (page, start, end, attributes));
     }
 
+    /**
+     * Create a new tag node from the attributes as they were lexed.
+     * @param page The page the node is on.
+     * @param start The beginning position of the tag.
+     * @param end The ending positiong of the tag.
+     * @param attributes The attributes contained in this tag.
+     * @return The created Tag node.
+     */
+    public Tag createTagNode (Page page, int start, int end, AttributeTable attributes)
+    {
+        return (new TagNode (page, start, end, attributes.copy ()));
+    }
+
     //
     // Internal methods
     //
@@ -732,6 +807,8 @@ public class Lexer
         quote = 0;
         while (!done)
         {
+            // plain text is read in runs, up to the next character that matters
+            mPage.scan (mCursor, quotesmart ? mQuoteSmartStringStops : mStringStops);
             ch = mPage.getCharacter (mCursor);
             if (Page.EOF == ch)
                 done = true;
@@ -856,69 +933,74 @@ public class Lexer
      * @param attributes The list so far.
      * @param bookmarks The array of positions.
      */
-    private void whitespace (Vector attributes, int[] bookmarks)
+    private void whitespace (AttributeTable attributes, int[] bookmarks)
     {
         if (bookmarks[1] > bookmarks[0])
-            attributes.addElement (new PageAttribute (
-                mPage, -1, -1, bookmarks[0], bookmarks[1], (char)0));
+            attributes.add (
+                -1, -1, bookmarks[0], bookmarks[1], (char)0, 0);
     }
 
     /**
      * Generate a standalone attribute -- font.
      * @param attributes The list so far.
      * @param bookmarks The array of positions.
+     * @param hash The hash of the name.
      */
-    private void standalone (Vector attributes, int[] bookmarks)
+    private void standalone (AttributeTable attributes, int[] bookmarks, int hash)
     {
-        attributes.addElement (new PageAttribute (
-            mPage, bookmarks[1], bookmarks[2], -1, -1, (char)0));
+        attributes.add (
+            bookmarks[1], bookmarks[2], -1, -1, (char)0, hash);
     }
 
     /**
      * Generate an empty attribute -- color=.
      * @param attributes The list so far.
      * @param bookmarks The array of positions.
+     * @param hash The hash of the name.
      */
-    private void empty (Vector attributes, int[] bookmarks)
+    private void empty (AttributeTable attributes, int[] bookmarks, int hash)
     {
-        attributes.addElement (new PageAttribute (
-            mPage, bookmarks[1], bookmarks[2], bookmarks[2] + 1, -1, (char)0));
+        attributes.add (
+            bookmarks[1], bookmarks[2], bookmarks[2] + 1, -1, (char)0, hash);
     }
 
     /**
      * Generate an unquoted attribute -- size=1.
      * @param attributes The list so far.
      * @param bookmarks The array of positions.
+     * @param hash The hash of the name.
      */
-    private void naked (Vector attributes, int[] bookmarks)
+    private void naked (AttributeTable attributes, int[] bookmarks, int hash)
     {
-        attributes.addElement (new PageAttribute (
-            mPage, bookmarks[1], bookmarks[2], bookmarks[3],
-            bookmarks[4], (char)0));
+        attributes.add (
+            bookmarks[1], bookmarks[2], bookmarks[3],
+            bookmarks[4], (char)0, hash);
     }
 
     /**
      * Generate an single quoted attribute -- width='100%'.
      * @param attributes The list so far.
      * @param bookmarks The array of positions.
+     * @param hash The hash of the name.
      */
-    private void single_quote (Vector attributes, int[] bookmarks)
+    private void single_quote (AttributeTable attributes, int[] bookmarks, int hash)
     {
-        attributes.addElement (new PageAttribute (
-            mPage, bookmarks[1], bookmarks[2], bookmarks[4] + 1,
-            bookmarks[5], '\''));
+        attributes.add (
+            bookmarks[1], bookmarks[2], bookmarks[4] + 1,
+            bookmarks[5], '\'', hash);
     }
 
     /**
      * Generate an double quoted attribute -- CONTENT="Test Development".
      * @param attributes The list so far.
      * @param bookmarks The array of positions.
+     * @param hash The hash of the name.
      */
-    private void double_quote (Vector attributes, int[] bookmarks)
+    private void double_quote (AttributeTable attributes, int[] bookmarks, int hash)
     {
-        attributes.addElement (new PageAttribute (
-            mPage, bookmarks[1], bookmarks[2], bookmarks[5] + 1,
-            bookmarks[6], '"'));
+        attributes.add (
+            bookmarks[1], bookmarks[2], bookmarks[5] + 1,
+            bookmarks[6], '"', hash);
     }
 
     /**
@@ -979,7 +1061,7 @@ public class Lexer
      * of integers that match the initiation point for the states one-for-one,
      * i.e. bookmarks[0] is where state 0 began, bookmarks[1] is where state 1
      * began, etc.
-     * Attributes are stored in a <code>Vector</code> having
+     * Attributes are stored in an {@link AttributeTable} having
      * one slot for each whitespace or attribute/value pair.
      * The first slot is for attribute name (kind of like a standalone attribute).
      * @param start The position at which to start scanning.
@@ -994,15 +1076,27 @@ public class Lexer
         char ch;
         int state;
         int[] bookmarks;
-        Vector attributes;
+        AttributeTable attributes;
+        int hash;
 
         done = false;
-        attributes = new Vector ();
+        hash = 0;
+        if (null == mAttributes)
+            mAttributes = new AttributeTable (mPage);
+        attributes = mAttributes;
+        attributes.reset (mPage);
         state = 0;
-        bookmarks = new int[8];
+        if (null == mBookmarks)
+            mBookmarks = new int[8];
+        bookmarks = mBookmarks;
         bookmarks[0] = mCursor.getPosition ();
         while (!done)
         {
+            // a quoted value is read in one run, up to its closing quote
+            if (4 == state)
+                mPage.scan (mCursor, mSingleQuoteStops);
+            else if (5 == state)
+                mPage.scan (mCursor, mDoubleQuoteStops);
             bookmarks[state + 1] = mCursor.getPosition ();
             ch = mPage.getCharacter (mCursor);
             switch (state)
@@ -1022,6 +1116,8 @@ public class Lexer
                     else if (!Character.isWhitespace (ch))
                     {
                         whitespace (attributes, bookmarks);
+                        // the name is hashed as it is read, for lookups in the table
+                        hash = AttributeTable.hash (0, ch);
                         state = 1;
                     }
                     break;
@@ -1034,7 +1130,7 @@ public class Lexer
                             mPage.ungetCharacter (mCursor);
                             bookmarks[state + 1] = mCursor.getPosition ();
                         }
-                        standalone (attributes, bookmarks);
+                        standalone (attributes, bookmarks, hash);
                         done = true;
                     }
                     else if (Character.isWhitespace (ch))
@@ -1046,11 +1142,13 @@ public class Lexer
                     }
                     else if ('=' == ch)
                         state = 2;
+                    else
+                        hash = AttributeTable.hash (hash, ch);
                     break;
                 case 2: // equals hit
                     if ((Page.EOF == ch) || ('>' == ch))
                     {
-                        empty (attributes, bookmarks);
+                        empty (attributes, bookmarks, hash);
                         done = true;
                     }
                     else if ('\'' == ch)
@@ -1075,12 +1173,12 @@ public class Lexer
                 case 3: // within naked attribute value
                     if ((Page.EOF == ch) || ('>' == ch))
                     {
-                        naked (attributes, bookmarks);
+                        naked (attributes, bookmarks, hash);
                         done = true;
                     }
                     else if (Character.isWhitespace (ch))
                     {
-                        naked (attributes, bookmarks);
+                        naked (attributes, bookmarks, hash);
                         bookmarks[0] = bookmarks[4];
                         state = 0;
                     }
@@ -1088,12 +1186,12 @@ public class Lexer
                 case 4: // within single quoted attribute value
                     if (Page.EOF == ch)
                     {
-                        single_quote (attributes, bookmarks);
+                        single_quote (attributes, bookmarks, hash);
                         done = true; // complain?
                     }
                     else if ('\'' == ch)
                     {
-                        single_quote (attributes, bookmarks);
+                        single_quote (attributes, bookmarks, hash);
                         bookmarks[0] = bookmarks[5] + 1;
                         state = 0;
                     }
@@ -1101,12 +1199,12 @@ public class Lexer
                 case 5: // within double quoted attribute value
                     if (Page.EOF == ch)
                     {
-                        double_quote (attributes, bookmarks);
+                        double_quote (attributes, bookmarks, hash);
                         done = true; // complain?
                     }
                     else if ('"' == ch)
                     {
-                        double_quote (attributes, bookmarks);
+                        double_quote (attributes, bookmarks, hash);
                         bookmarks[0] = bookmarks[6] + 1;
                         state = 0;
                     }
@@ -1119,7 +1217,7 @@ public class Lexer
                     if (Page.EOF == ch)
                     {
                         // same as last else clause
-                        standalone (attributes, bookmarks);
+                        standalone (attributes, bookmarks, hash);
                   	    bookmarks[0]=bookmarks[6];
                   	    mPage.ungetCharacter (mCursor);
                   	    state=0;
@@ -1141,7 +1239,7 @@ public class Lexer
                         // now: create the stand alone attribute and rewind 
                         // the cursor to the end of the white spaces
                         // and restart scanning as whitespace attribute.
-                  	    standalone (attributes, bookmarks);
+                  	    standalone (attributes, bookmarks, hash);
                   	    bookmarks[0]=bookmarks[6];
                   	    mPage.ungetCharacter (mCursor);
                   	    state=0;
@@ -1155,6 +1253,42 @@ public class Lexer
         return (makeTag (start, mCursor.getPosition (), attributes));
     }
 
+    /**
+     * Create a tag node based on the current cursor and the one provided.
+     * A {@link TableNodeFactory} gets the table itself, which the lexer
+     * reuses for the next tag, any other factory a vector made from it.
+     * @param start The starting point of the node.
+     * @param end The ending point of the node.
+     * @param attributes The attributes parsed from the tag.
+     * @exception ParserException If the nodefactory creation of the tag node fails.
+     * @return The new Tag node.
+     */
+    protected Node makeTag (int start, int end, AttributeTable attributes)
+        throws
+            ParserException
+    {
+        int length;
+        NodeFactory factory;
+        Node ret;
+
+        length = end - start;
+        if (0 != length)
+        {   // return tag based on second character, '/', '%', Letter (ch), '!'
+            if (2 > length)
+                // this is an error
+                return (makeString (start, end));
+            factory = getNodeFactory ();
+            if (factory instanceof TableNodeFactory)
+                ret = ((TableNodeFactory)factory).createTagNode (this.getPage (), start, end, attributes);
+            else
+                ret = factory.createTagNode (this.getPage (), start, end, attributes.toVector ());
+        }
+        else
+            ret = null;
+
+        return (ret);
+    }
+
     /**
      * Create a tag node based on the current cursor and the one provided.
      * @param start The starting point of the node.
@@ -1238,6 +1372,8 @@ public class Lexer
         state = 0;
         while (!done)
         {
+            if (2 == state)
+                mPage.scan (mCursor, mRemarkStops);
             ch = mPage.getCharacter (mCursor);
             if (Page.EOF == ch)
                 done = true;
@@ -1356,7 +1492,7 @@ public class Lexer
         done = false;
         state = 0;
         code = 0;
-        attributes = new Vector ();
+        attributes = new LocalVector ();
         // <%xyz%>
         // 012223d
         // <%=xyz%>
@@ -1537,7 +1673,7 @@ public class Lexer
         done = false;
         state = 0;
         code = 0;
-        attributes = new Vector ();
+        attributes = new LocalVector ();
         // <?xyz?>
         // 011112d
         while (!done)
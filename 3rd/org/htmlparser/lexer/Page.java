@@ -481,6 +481,23 @@ public class Page
         mIndex = new PageIndex (this); // todo: is this really necessary?
     }
 
+    /**
+     * Reuse the page for another source of characters.
+     * The page is then as if it had been constructed from the source, but
+     * the line index keeps its storage. The old source is not closed.
+     * @param source The new source of characters.
+     */
+    public void reset (Source source)
+    {
+        if (null == source)
+            throw new IllegalArgumentException ("source cannot be null");
+        mSource = source;
+        mIndex.clear ();
+        mConnection = null;
+        mUrl = null;
+        mBaseUrl = null;
+    }
+
     /**
      * Close the page by destroying the source of characters.
      * @exception IOException If destroying the source encounters an error.
@@ -792,6 +809,57 @@ public class Page
         return (ret);
     }
 
+    /**
+     * Move the cursor over a run of characters that need no attention.
+     * This reads the characters straight from the source,
+     * as {@link Source#scan} does, instead of one call to
+     * {@link #getCharacter(Cursor)} for each, and adds the line feeds among
+     * them to the EOL index on the way. Carriage returns always end the run
+     * and are left to {@link #getCharacter(Cursor)}, which turns them into
+     * line feeds. The cursor only moves when it is at the end of what has
+     * been read, after an {@link #ungetCharacter(Cursor) unget} nothing is
+     * skipped.
+     * @param cursor The position to read at, moved past the run.
+     * @param stops Which characters below 128 end the run, made by
+     * {@link #stops}.
+     * @exception ParserException If an IOException on the underlying source
+     * occurs.
+     */
+    public void scan (Cursor cursor, boolean[] stops)
+        throws
+            ParserException
+    {
+        if (mSource.offset () == cursor.getPosition ())
+            try
+            {
+                cursor.setPosition (cursor.getPosition () + mSource.scan (stops, mIndex));
+            }
+            catch (IOException ioe)
+            {
+                throw new ParserException (
+                    "problem reading a character at position "
+                    + cursor.getPosition (), ioe);
+            }
+    }
+
+    /**
+     * Make a table of characters that end a {@link #scan scan}.
+     * @param characters The characters that end it, all below 128.
+     * A carriage return is always added.
+     * @return The table, for {@link #scan scan}.
+     */
+    public static boolean[] stops (String characters)
+    {
+        boolean[] ret;
+
+        ret = new boolean[128];
+        ret['\r'] = true;
+        for (int i = 0; i < characters.length (); i++)
+            ret[characters.charAt (i)] = true;
+
+        return (ret);
+    }
+
     /**
      * Return a character.
      * Handles end of lines (EOL) specially, retreating the cursor twice for
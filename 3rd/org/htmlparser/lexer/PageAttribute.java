@@ -208,7 +208,7 @@ public class PageAttribute
         {
             if ((null != mPage) && (0 <= mNameStart))
             {
-                ret = mPage.getText (mNameStart, mNameEnd);
+                ret = SymbolTable.getName (mPage, mNameStart, mNameEnd);
                 setName (ret); // cache the value
             }
         }
@@ -123,6 +123,14 @@ public class PageIndex
         return (mCount);
     }
 
+    /**
+     * Remove all elements, keeping the space they took.
+     */
+    public void clear ()
+    {
+        mCount = 0;
+    }
+
     /**
      * Get the capacity for elements without reallocation.
      * @return The number of spaces for elements.
@@ -140,11 +148,22 @@ public class PageIndex
      */
     public int add (Cursor cursor)
     {
-        int position;
+        return (add (cursor.getPosition ()));
+    }
+
+    /**
+     * Add an element to the list.
+     * Only an element that goes before the last one needs a cursor object,
+     * to search for its place.
+     * @param position The element to add.
+     * @return The position at which the element was inserted or
+     * the index of the existing element if it is a duplicate.
+     */
+    public int add (int position)
+    {
         int last;
         int ret;
 
-        position = cursor.getPosition ();
         if (0 == mCount)
         {
             ret = 0;
@@ -164,7 +183,7 @@ public class PageIndex
                 else
                 {
         	        // find where it goes
-        	        ret = Sort.bsearch (this, cursor);
+        	        ret = Sort.bsearch (this, new Cursor (getPage (), position));
 
 	                // insert, but not twice
 	                if (!((ret < size ()) && (position == mIndices[ret])))
@@ -175,17 +194,6 @@ public class PageIndex
         return (ret);
     }
 
-    /**
-     * Add an element to the list
-     * @param cursor The element to add.
-     * @return The position at which the element was inserted or
-     * the index of the existing element if it is a duplicate.
-     */
-    public int add (int cursor)
-    {
-        return (add (new Cursor (getPage (), cursor)));
-    }
-
     /**
      * Remove an element from the list
      * @param cursor The element to remove.
@@ -248,4 +248,29 @@ public abstract class Source
      * @return The number of characters that can be read without blocking.
      */
     public abstract int available ();
+
+    /**
+     * Read a run of characters, as calls to {@link #read()} would, but
+     * without a call for each one.
+     * The run ends before a character below 128 that is marked in
+     * <code>stops</code>, or where no more characters can be read without
+     * blocking. Characters of 128 and up never end it. The position after
+     * each line feed in the run is added to <code>lines</code>, which
+     * leaves the run read just as {@link Page#getCharacter} would have left
+     * it, as long as the table marks the carriage return, which
+     * {@link Page#stops} tables do.
+     * This implementation reads nothing, sources that hold their
+     * characters in memory read directly from them.
+     * @param stops Which characters below 128 end the run.
+     * @param lines The index of line starts to add to.
+     * @return The number of characters read, zero if the next one ends the
+     * run or none can be read yet.
+     * @exception IOException If an I/O error occurs.
+     */
+    public int scan (boolean[] stops, PageIndex lines)
+        throws
+            IOException
+    {
+        return (0);
+    }
 }
@@ -435,4 +435,41 @@ public class StringSource
 
         return (ret);
     }
+
+    /**
+     * Read a run of characters straight from the string.
+     * @param stops Which characters below 128 end the run.
+     * @param lines The index of line starts to add to.
+     * @return The number of characters read.
+     * @exception IOException If the source is closed.
+     * @see Source#scan
+     */
+    public int scan (boolean[] stops, PageIndex lines)
+        throws
+            IOException
+    {
+        String string;
+        int length;
+        int start;
+        int offset;
+        char ch;
+
+        string = mString;
+        if (null == string)
+            throw new IOException ("source is closed");
+        length = string.length ();
+        start = mOffset;
+        for (offset = start; offset < length; offset++)
+        {
+            ch = string.charAt (offset);
+            if (ch < 128)
+                if (stops[ch])
+                    break;
+                else if ('\n' == ch)
+                    lines.add (offset + 1);
+        }
+        mOffset = offset;
+
+        return (offset - start);
+    }
 }
@@ -0,0 +1,284 @@
+// HTMLParser Library $Name: v1_6 $ - A java-based parser for HTML
+// http://sourceforge.org/projects/htmlparser
+// Copyright (C) 2004 Derrick Oswald
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//
+
+package org.htmlparser.lexer;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Locale;
+
+/**
+ * Canonical strings for tag and attribute names, read from the page source.
+ * A name that has been seen before is found by comparing the characters
+ * on the page against the symbol, so no string is made for it.
+ * A tag name from the {@link #KNOWN known} HTML tags is the string literal
+ * itself, so it can be compared by identity with a literal such as
+ * <code>"A"</code>. Nothing read from the page is
+ * {@link String#intern interned}, other names are plain strings that are
+ * dropped with the page once their slot is taken.
+ * The symbols are kept in two small tables shared by all lexers, one of
+ * upper case tag names and one of names as the page has them, where a
+ * name takes the place of any other with the same slot. Since strings
+ * are immutable, threads that race on a slot at worst make a symbol again.
+ * Only ASCII names up to {@link #LONGEST} characters are kept, any other
+ * name is made from the page text each time, exactly as before.
+ */
+public class SymbolTable
+{
+    /**
+     * The number of slots in each table, a power of two.
+     */
+    protected static final int SIZE = 1024;
+
+    /**
+     * The longest name that is kept.
+     */
+    protected static final int LONGEST = 32;
+
+    /**
+     * The HTML tag names, in upper case, that are given as literals.
+     */
+    protected static final String[] KNOWN =
+    {
+        "!DOCTYPE", "A", "ABBR", "ACRONYM", "ADDRESS", "APPLET", "AREA",
+        "ARTICLE", "ASIDE", "AUDIO", "B", "BASE", "BASEFONT", "BDI", "BDO",
+        "BIG", "BLOCKQUOTE", "BODY", "BR", "BUTTON", "CANVAS", "CAPTION",
+        "CENTER", "CITE", "CODE", "COL", "COLGROUP", "DATA", "DATALIST", "DD",
+        "DEL", "DETAILS", "DFN", "DIALOG", "DIR", "DIV", "DL", "DT", "EM",
+        "EMBED", "FIELDSET", "FIGCAPTION", "FIGURE", "FONT", "FOOTER", "FORM",
+        "FRAME", "FRAMESET", "H1", "H2", "H3", "H4", "H5", "H6", "HEAD",
+        "HEADER", "HR", "HTML", "I", "IFRAME", "IMG", "INPUT", "INS",
+        "ISINDEX", "KBD", "LABEL", "LEGEND", "LI", "LINK", "MAIN", "MAP",
+        "MARK", "MENU", "META", "METER", "NAV", "NOBR", "NOFRAMES",
+        "NOSCRIPT", "OBJECT", "OL", "OPTGROUP", "OPTION", "OUTPUT", "P",
+        "PARAM", "PICTURE", "PRE", "PROGRESS", "Q", "RP", "RT", "RUBY", "S",
+        "SAMP", "SCRIPT", "SECTION", "SELECT", "SMALL", "SOURCE", "SPAN",
+        "STRIKE", "STRONG", "STYLE", "SUB", "SUMMARY", "SUP", "SVG", "TABLE",
+        "TBODY", "TD", "TEMPLATE", "TEXTAREA", "TFOOT", "TH", "THEAD", "TIME",
+        "TITLE", "TR", "TRACK", "TT", "U", "UL", "VAR", "VIDEO", "WBR",
+    };
+
+    /**
+     * The known tag names, each mapped to itself.
+     */
+    protected static final Hashtable mKnown = new Hashtable ();
+
+    static
+    {
+        for (int i = 0; i < KNOWN.length; i++)
+            mKnown.put (KNOWN[i], KNOWN[i]);
+    }
+
+    /**
+     * Tag names in upper case, without slashes.
+     */
+    protected static final String[] mTagNames = new String[SIZE];
+
+    /**
+     * Names as the page has them.
+     */
+    protected static final String[] mNames = new String[SIZE];
+
+    /**
+     * Not instantiated, all methods are static.
+     */
+    private SymbolTable ()
+    {
+    }
+
+    /**
+     * Get the name of a tag the way {@link org.htmlparser.Tag#getTagName}
+     * gives it: in upper case, without the slash of an end tag or of an
+     * empty XML tag.
+     * @param page The page the tag is on.
+     * @param start The starting offset of the raw tag name.
+     * @param end The ending offset of the raw tag name.
+     * @return The tag name symbol.
+     */
+    public static String getTagName (Page page, int start, int end)
+    {
+        Source source;
+        String ret;
+
+        source = page.getSource ();
+        try
+        {
+            if ((start < end) && ('/' == source.getCharacter (start)))
+                start++;
+            if ((start < end) && ('/' == source.getCharacter (end - 1)))
+                end--;
+            ret = lookup (mTagNames, source, start, end, true);
+        }
+        catch (IOException ioe)
+        {
+            ret = null;
+        }
+        if (null == ret)
+            ret = page.getText (start, end).toUpperCase (Locale.ENGLISH);
+
+        return (ret);
+    }
+
+    /**
+     * Get a name as the page has it.
+     * @param page The page the name is on.
+     * @param start The starting offset of the name.
+     * @param end The ending offset of the name.
+     * @return The name symbol.
+     */
+    public static String getName (Page page, int start, int end)
+    {
+        String ret;
+
+        try
+        {
+            ret = lookup (mNames, page.getSource (), start, end, false);
+        }
+        catch (IOException ioe)
+        {
+            ret = null;
+        }
+        if (null == ret)
+            ret = page.getText (start, end);
+
+        return (ret);
+    }
+
+    /**
+     * Find or make the symbol for some characters of a source.
+     * @param table The table to look in.
+     * @param source The source the characters are in.
+     * @param start The starting offset of the characters.
+     * @param end The ending offset of the characters.
+     * @param upper If <code>true</code> the symbol is in upper case.
+     * @return The symbol, or <code>null</code> if the characters are not a
+     * name that is kept.
+     * @exception IOException If the source cannot give the characters.
+     */
+    protected static String lookup (String[] table, Source source, int start, int end, boolean upper)
+        throws
+            IOException
+    {
+        int length;
+        boolean ascii;
+        int hash;
+        char ch;
+        int index;
+        String ret;
+
+        ret = null;
+        length = end - start;
+        ascii = (0 <= length) && (length <= LONGEST);
+        hash = 0;
+        for (int i = start; ascii && (i < end); i++)
+        {
+            ch = source.getCharacter (i);
+            ascii = ch < 0x80;
+            hash = 31 * hash + (upper ? upper (ch) : ch);
+        }
+        if (ascii)
+        {
+            // the same hash String.hashCode gives the symbol
+            index = (hash ^ (hash >>> 16)) & (SIZE - 1);
+            ret = table[index];
+            if ((null == ret) || (ret.length () != length) || (ret.hashCode () != hash)
+                || !matches (ret, source, start, upper))
+            {
+                ret = make (source, start, end, upper);
+                table[index] = ret;
+            }
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Compare a symbol against some characters of a source.
+     * @param symbol The symbol.
+     * @param source The source the characters are in.
+     * @param start The starting offset of the characters.
+     * @param upper If <code>true</code> the characters are folded to upper
+     * case.
+     * @return <code>true</code> if they are the same.
+     * @exception IOException If the source cannot give the characters.
+     */
+    protected static boolean matches (String symbol, Source source, int start, boolean upper)
+        throws
+            IOException
+    {
+        char ch;
+        boolean ret;
+
+        ret = true;
+        for (int i = 0; ret && (i < symbol.length ()); i++)
+        {
+            ch = source.getCharacter (start + i);
+            ret = symbol.charAt (i) == (upper ? upper (ch) : ch);
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Make the symbol for some characters of a source.
+     * @param source The source the characters are in.
+     * @param start The starting offset of the characters.
+     * @param end The ending offset of the characters.
+     * @param upper If <code>true</code> the symbol is a tag name in upper
+     * case.
+     * @return The symbol, the literal if it is a known tag name.
+     * @exception IOException If the source cannot give the characters.
+     */
+    protected static String make (Source source, int start, int end, boolean upper)
+        throws
+            IOException
+    {
+        char[] chars;
+        String ret;
+        String known;
+
+        chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++)
+        {
+            chars[i] = source.getCharacter (start + i);
+            if (upper)
+                chars[i] = upper (chars[i]);
+        }
+
+        ret = new String (chars);
+        if (upper)
+        {
+            known = (String)mKnown.get (ret);
+            if (null != known)
+                ret = known;
+        }
+
+        return (ret);
+    }
+
+    /**
+     * Fold an ASCII letter to upper case.
+     * @param ch The character.
+     * @return The character in upper case if it is an ASCII letter.
+     */
+    protected static char upper (char ch)
+    {
+        return ((('a' <= ch) && (ch <= 'z')) ? (char)(ch - ('a' - 'A')) : ch);
+    }
+}
@@ -27,17 +27,21 @@
 package org.htmlparser.nodes;
 
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Vector;
 
 import org.htmlparser.Attribute;
 import org.htmlparser.Tag;
+import org.htmlparser.lexer.AttributeTable;
 import org.htmlparser.lexer.Cursor;
 import org.htmlparser.lexer.Lexer;
 import org.htmlparser.lexer.Page;
+import org.htmlparser.lexer.SymbolTable;
 import org.htmlparser.scanners.Scanner;
 import org.htmlparser.scanners.TagScanner;
+import org.htmlparser.util.LocalVector;
 import org.htmlparser.util.ParserException;
 import org.htmlparser.visitors.NodeVisitor;
 
@@ -75,13 +79,20 @@ public class TagNode
      */
     protected Vector mAttributes;
 
+    /**
+     * The tag attributes as the lexer found them.
+     * Kept instead of {@link #mAttributes} until the vector is asked for.
+     */
+    protected AttributeTable mTable;
+
     /**
      * Set of tags that breaks the flow.
+     * It is only read once it is filled, so all threads share it unlocked.
      */
-    protected static Hashtable breakTags;
+    protected static Map breakTags;
     static
     {
-        breakTags = new Hashtable (30);
+        breakTags = new HashMap (30);
         breakTags.put ("BLOCKQUOTE", Boolean.TRUE);
         breakTags.put ("BODY", Boolean.TRUE);
         breakTags.put ("BR", Boolean.TRUE);
@@ -119,7 +130,7 @@ public class TagNode
      */
     public TagNode ()
     {
-        this (null, -1, -1, new Vector ());
+        this (null, -1, -1, new LocalVector ());
     }
 
     /**
@@ -137,15 +148,40 @@ public class TagNode
         mScanner = mDefaultScanner;
         mAttributes = attributes;
         if ((null == mAttributes) || (0 == mAttributes.size ()))
-        {
-            String[] names;
+            setDefaultTagName ();
+    }
 
-            names = getIds ();
-            if ((null != names) && (0 != names.length))
-                setTagName (names[0]);
-            else
-                setTagName (""); // make sure it's not null
-        }
+    /**
+     * Create a tag with the location and attributes as they were lexed.
+     * No attribute objects are made until {@link #getAttributesEx} is called.
+     * @param page The page this tag was read from.
+     * @param start The starting offset of this node within the page.
+     * @param end The ending offset of this node within the page.
+     * @param attributes The attributes that were parsed in this tag.
+     */
+    public TagNode (Page page, int start, int end, AttributeTable attributes)
+    {
+        super (page, start, end);
+
+        mScanner = mDefaultScanner;
+        if (0 == attributes.size ())
+            setDefaultTagName ();
+        else
+            mTable = attributes;
+    }
+
+    /**
+     * Name a tag that has no attributes after the first of its ids.
+     */
+    private void setDefaultTagName ()
+    {
+        String[] names;
+
+        names = getIds ();
+        if ((null != names) && (0 != names.length))
+            setTagName (names[0]);
+        else
+            setTagName (""); // make sure it's not null
     }
 
     /**
@@ -167,14 +203,24 @@ public class TagNode
      */
     public String getAttribute (String name)
     {
+        int index;
         Attribute attribute;
         String ret;
 
         ret = null;
 
-        attribute = getAttributeEx (name);
-        if (null != attribute)
-            ret = attribute.getValue ();
+        if (null != mTable)
+        {
+            index = mTable.indexOf (name);
+            if (-1 != index)
+                ret = mTable.getValue (index);
+        }
+        else
+        {
+            attribute = getAttributeEx (name);
+            if (null != attribute)
+                ret = attribute.getValue ();
+        }
 
         return (ret);
     }
@@ -372,9 +418,27 @@ public class TagNode
      */
     public Vector getAttributesEx ()
     {
+        if (null != mTable)
+        {
+            mAttributes = mTable.toVector ();
+            mTable = null;
+        }
+
         return (mAttributes);
     }
 
+    /**
+     * Set the attributes as the lexer found them.
+     * They replace any attribute vector, which is made again from the
+     * table the next time it is asked for.
+     * @param table The attributes contained in this tag.
+     */
+    public void setAttributeTable (AttributeTable table)
+    {
+        mTable = table;
+        mAttributes = null;
+    }
+
     /**
      * Return the name of this tag.
      * <p>
@@ -386,20 +450,27 @@ public class TagNode
      * {@link #getRawTagName getRawTagName()}.
      * The conversion to uppercase is performed with an ENGLISH locale.
      * </em>
+     * A tag read by the lexer answers the {@link SymbolTable} symbol, which
+     * is the same string object every time.
      * @return The tag name.
      */
     public String getTagName ()
     {
         String ret;
 
-        ret = getRawTagName ();
-        if (null != ret)
+        if (null != mTable)
+            ret = mTable.getTagName ();
+        else
         {
-            ret = ret.toUpperCase (Locale.ENGLISH);
-            if (ret.startsWith ("/"))
-                ret = ret.substring (1);
-            if (ret.endsWith ("/"))
-                ret = ret.substring (0, ret.length () - 1);
+            ret = getRawTagName ();
+            if (null != ret)
+            {
+                ret = ret.toUpperCase (Locale.ENGLISH);
+                if (ret.startsWith ("/"))
+                    ret = ret.substring (1);
+                if (ret.endsWith ("/"))
+                    ret = ret.substring (0, ret.length () - 1);
+            }
         }
 
         return (ret);
@@ -417,9 +488,14 @@ public class TagNode
 
         ret = null;
         
-        attributes = getAttributesEx ();
-        if (0 != attributes.size ())
-            ret = ((Attribute)attributes.elementAt (0)).getName ();
+        if (null != mTable)
+            ret = mTable.getName (0);
+        else
+        {
+            attributes = getAttributesEx ();
+            if (0 != attributes.size ())
+                ret = ((Attribute)attributes.elementAt (0)).getName ();
+        }
 
         return (ret);
     }
@@ -440,7 +516,7 @@ public class TagNode
         attributes = getAttributesEx ();
         if (null == attributes)
         {
-            attributes = new Vector ();
+            attributes = new LocalVector ();
             setAttributesEx (attributes);
         }
         if (0 == attributes.size ())
@@ -480,6 +556,7 @@ public class TagNode
      */
     public void setAttributesEx (Vector attribs)
     {
+        mTable = null;
         mAttributes = attribs;
     }
 
@@ -535,7 +612,7 @@ public class TagNode
             mPage = output.getPage ();
             nodeBegin = output.getStartPosition ();
             nodeEnd = output.getEndPosition ();
-            mAttributes = output.getAttributesEx ();
+            setAttributesEx (output.getAttributesEx ());
         }
         catch (ParserException pe)
         {
@@ -666,17 +743,27 @@ public class TagNode
 
         ret = false;
 
-        attributes = getAttributesEx ();
-        size = attributes.size ();
-        if (0 < size)
+        if (null != mTable)
         {
-            attribute = (Attribute)attributes.elementAt (size - 1);
-            name = attribute.getName ();
-            if (null != name)
+            size = mTable.size ();
+            name = (0 < size) ? mTable.getName (size - 1) : null;
+        }
+        else
+        {
+            attributes = getAttributesEx ();
+            size = attributes.size ();
+            if (0 < size)
             {
-                length = name.length ();
-                ret = name.charAt (length - 1) == '/';
+                attribute = (Attribute)attributes.elementAt (size - 1);
+                name = attribute.getName ();
             }
+            else
+                name = null;
+        }
+        if (null != name)
+        {
+            length = name.length ();
+            ret = name.charAt (length - 1) == '/';
         }
 
         return (ret);
@@ -774,10 +861,17 @@ public class TagNode
     public boolean isEndTag ()
     {
         String raw;
-        
-        raw = getRawTagName ();
+        boolean ret;
+
+        if (null != mTable)
+            ret = mTable.isEndTag ();
+        else
+        {
+            raw = getRawTagName ();
+            ret = (null == raw) ? false : ((0 != raw.length ()) && ('/' == raw.charAt (0)));
+        }
 
-        return ((null == raw) ? false : ((0 != raw.length ()) && ('/' == raw.charAt (0))));
+        return (ret);
     }
 
     /**
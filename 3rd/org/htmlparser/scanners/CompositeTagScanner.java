@@ -34,6 +34,7 @@ import org.htmlparser.Tag;
 import org.htmlparser.lexer.Lexer;
 import org.htmlparser.lexer.Page;
 import org.htmlparser.scanners.Scanner;
+import org.htmlparser.util.LocalVector;
 import org.htmlparser.util.NodeList;
 import org.htmlparser.util.ParserException;
 
@@ -186,7 +187,7 @@ public class CompositeTagScanner extends TagScanner
                                 // If there is something, we close off all the tags
                                 // walked over and continue on as if nothing
                                 // happened.
-                                Vector attributes = new Vector ();
+                                Vector attributes = new LocalVector ();
                                 attributes.addElement (new Attribute (name, null));
                                 Tag opener = lexer.getNodeFactory ().createTagNode (
                                     lexer.getPage (), next.getStartPosition (), next.getEndPosition (),
@@ -325,7 +326,7 @@ public class CompositeTagScanner extends TagScanner
         Vector attributes;
         
         name = "/" + tag.getRawTagName ();
-        attributes = new Vector ();
+        attributes = new LocalVector ();
         attributes.addElement (new Attribute (name, (String)null));
         ret = lexer.getNodeFactory ().createTagNode (
                                     page, position, position, attributes);
@@ -0,0 +1,150 @@
+// HTMLParser Library $Name: v1_6 $ - A java-based parser for HTML
+// http://sourceforge.org/projects/htmlparser
+// Copyright (C) 2004 Derrick Oswald
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//
+
+package org.htmlparser.util;
+
+import java.util.Vector;
+
+/**
+ * A vector for use by one thread.
+ * The methods that read, replace and append elements, which is what the
+ * parser does with the attributes of a tag, work on the array of the
+ * vector without taking its lock. Everything else is left to
+ * {@link Vector}, so this can be handed out wherever the API promises a
+ * vector, but like the nodes it belongs to, it must not be shared between
+ * threads without outside synchronization.
+ */
+public class LocalVector
+    extends
+        Vector
+{
+    /**
+     * Create an empty vector with the default capacity.
+     */
+    public LocalVector ()
+    {
+        super ();
+    }
+
+    /**
+     * Create an empty vector.
+     * @param capacity The initial capacity.
+     */
+    public LocalVector (int capacity)
+    {
+        super (capacity);
+    }
+
+    /**
+     * Get the number of elements.
+     * @return The number of elements in the vector.
+     */
+    public int size ()
+    {
+        return (elementCount);
+    }
+
+    /**
+     * Check for no elements.
+     * @return <code>true</code> if the vector is empty.
+     */
+    public boolean isEmpty ()
+    {
+        return (0 == elementCount);
+    }
+
+    /**
+     * Get an element.
+     * @param index The index of the element.
+     * @return The element at that index.
+     * @exception ArrayIndexOutOfBoundsException If the index is out of range.
+     */
+    public Object elementAt (int index)
+    {
+        if (index >= elementCount)
+            throw new ArrayIndexOutOfBoundsException (index + " >= " + elementCount);
+
+        return (elementData[index]);
+    }
+
+    /**
+     * Get an element.
+     * @param index The index of the element.
+     * @return The element at that index.
+     * @exception ArrayIndexOutOfBoundsException If the index is out of range.
+     */
+    public Object get (int index)
+    {
+        return (elementAt (index));
+    }
+
+    /**
+     * Replace an element.
+     * @param obj The new element.
+     * @param index The index of the element.
+     * @exception ArrayIndexOutOfBoundsException If the index is out of range.
+     */
+    public void setElementAt (Object obj, int index)
+    {
+        if (index >= elementCount)
+            throw new ArrayIndexOutOfBoundsException (index + " >= " + elementCount);
+        elementData[index] = obj;
+    }
+
+    /**
+     * Replace an element.
+     * @param index The index of the element.
+     * @param element The new element.
+     * @return The element that was at that index.
+     * @exception ArrayIndexOutOfBoundsException If the index is out of range.
+     */
+    public Object set (int index, Object element)
+    {
+        Object ret;
+
+        ret = elementAt (index);
+        elementData[index] = element;
+
+        return (ret);
+    }
+
+    /**
+     * Append an element.
+     * @param obj The element to add.
+     */
+    public void addElement (Object obj)
+    {
+        if (elementCount == elementData.length)
+            ensureCapacity (elementCount + 1);
+        modCount++;
+        elementData[elementCount++] = obj;
+    }
+
+    /**
+     * Append an element.
+     * @param obj The element to add.
+     * @return <code>true</code>, as {@link java.util.Collection#add} requires.
+     */
+    public boolean add (Object obj)
+    {
+        addElement (obj);
+
+        return (true);
+    }
+}
@@ -0,0 +1,151 @@
+package com.opera.traffic;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Locale;
+
+// Picks the charset of a page before any of it is decoded, the way a browser does: a byte order mark, then the
+// charset of the Content-Type header, then a <meta charset> or <meta http-equiv content> in the first bytes of the
+// page, then UTF-8. The page is decoded once in that charset and never switched half way.
+public final class CharsetResolver {
+    // how far into the page a meta tag is looked for
+    private static final int PRESCAN_BYTES = 4096;
+    private static final String DEFAULT = "UTF-8";
+
+    private CharsetResolver() {
+    }
+
+    // the number of bytes the byte order mark at the start of body takes, 0 when there is none
+    public static int bomLength(byte[] body, int length) {
+        if (length >= 3 && (body[0] & 0xff) == 0xef && (body[1] & 0xff) == 0xbb && (body[2] & 0xff) == 0xbf) {
+            return 3;
+        }
+        if (length >= 2 && ((body[0] & 0xff) == 0xfe && (body[1] & 0xff) == 0xff
+                || (body[0] & 0xff) == 0xff && (body[1] & 0xff) == 0xfe)) {
+            return 2;
+        }
+        return 0;
+    }
+
+    // The name of the charset to decode body with, contentType may be null.
+    public static String resolve(String contentType, byte[] body, int length) {
+        int bom = bomLength(body, length);
+        if (bom == 3) {
+            return "UTF-8";
+        } else if (bom == 2) {
+            return (body[0] & 0xff) == 0xfe ? "UTF-16BE" : "UTF-16LE";
+        }
+        String charset = contentType != null ? supported(charsetOf(contentType)) : null;
+        if (charset == null) {
+            charset = prescan(body, Math.min(length, PRESCAN_BYTES));
+        }
+        return charset != null ? charset : DEFAULT;
+    }
+
+    // the charset parameter of a Content-Type value, or null
+    private static String charsetOf(String content) {
+        String lower = content.toLowerCase(Locale.ENGLISH);
+        int i = lower.indexOf("charset");
+        while (i != -1) {
+            int j = i + 7;
+            while (j < lower.length() && lower.charAt(j) == ' ') {
+                j++;
+            }
+            if (j < lower.length() && lower.charAt(j) == '=') {
+                j++;
+                while (j < lower.length() && lower.charAt(j) == ' ') {
+                    j++;
+                }
+                char quote = j < lower.length() ? lower.charAt(j) : 0;
+                if (quote == '"' || quote == '\'') {
+                    j++;
+                }
+                int end = j;
+                while (end < lower.length() && "\"'; \t>".indexOf(lower.charAt(end)) == -1) {
+                    end++;
+                }
+                return end > j ? content.substring(j, end) : null;
+            }
+            i = lower.indexOf("charset", j);
+        }
+        return null;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '/';
+    }
+
+    // Looks at the meta tags in the first bytes of the page, read as ASCII. Comments are skipped, the first
+    // charset that is supported wins.
+    private static String prescan(byte[] body, int length) {
+        for (int i = 0; i < length; i++) {
+            if (body[i] != '<') {
+                continue;
+            }
+            if (startsWith(body, length, i, "<!--")) {
+                int end = indexOf(body, length, i + 4, "-->");
+                if (end == -1) {
+                    return null;
+                }
+                i = end + 2;
+            } else if (startsWith(body, length, i, "<meta") && i + 5 < length && isSpace(body[i + 5])) {
+                int end = indexOf(body, length, i, ">");
+                if (end == -1) {
+                    return null;
+                }
+                String charset = supported(charsetOf(new String(body, i, end - i, Charset.forName("ISO-8859-1"))));
+                if (charset != null) {
+                    // a page that could be read as ASCII is not UTF-16 whatever it says
+                    return charset.startsWith("UTF-16") ? "UTF-8" : charset;
+                }
+                i = end;
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] body, int length, int from, String s) {
+        for (int i = from; i + s.length() <= length; i++) {
+            if (startsWith(body, length, i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // s is lower case, body is compared without case
+    private static boolean startsWith(byte[] body, int length, int at, String s) {
+        if (at + s.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            int c = body[at + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The canonical name of a charset the runtime has, or null. Labels that pages use for a smaller charset than
+    // the one they are written in are widened as browsers widen them.
+    private static String supported(String name) {
+        if (name == null) {
+            return null;
+        }
+        String lower = name.trim().toLowerCase(Locale.ENGLISH);
+        if (lower.equals("gb2312") || lower.equals("gb_2312-80")) {
+            lower = "GBK";
+        } else if (lower.equals("iso-8859-1") || lower.equals("latin1") || lower.equals("us-ascii")) {
+            lower = "windows-1252";
+        }
+        try {
+            return Charset.isSupported(lower) ? Charset.forName(lower).name() : null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+}
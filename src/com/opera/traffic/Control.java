@@ -1,132 +1,230 @@
 package com.opera.traffic;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.htmlparser.Node;
-import org.htmlparser.Parser;
-import org.htmlparser.Tag;
-import org.htmlparser.tags.LinkTag;
 import org.htmlparser.util.ParserException;
-import org.htmlparser.visitors.NodeVisitor;
 
 public class Control implements HttpClientHelper.Listener {
+    public enum Engine {
+        // one pooled platform thread per fetch
+        THREADS,
+        // plain http on NioFetcher selector threads
+        NIO,
+        // one virtual thread per fetch, Java 21 and later
+        VIRTUAL
+    }
+
     public interface DownloadFilter {
         public boolean isDesired(Header[] headers);
     }
 
     public interface LinkFilter {
-        public boolean isDesired(LinkTag lt);
+        public boolean isDesired(LinkRecord lt);
+    }
+
+    public interface LinkVisitor {
+        public void visit(LinkRecord lt);
     }
 
     public interface RoundCompleted {
         public void roundCompleted();
     }
 
+    // A fetch either runs or is called off by stop, never both, so its slot is given back exactly once.
+    private static final class FetchTask extends FutureTask<Void> {
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+
+        FetchTask(Runnable fetch) {
+            super(fetch, null);
+        }
+
+        @Override
+        public void run() {
+            if (mClaimed.compareAndSet(false, true)) {
+                super.run();
+            }
+        }
+
+        // true when the fetch had not started and now never will
+        boolean callOff() {
+            if (mClaimed.compareAndSet(false, true)) {
+                cancel(false);
+                return true;
+            }
+            return false;
+        }
+    }
+
     private final int MAX_LOADING_THREAD = 32;
-    private final ExecutorService mCachedExecutor = Executors.newCachedThreadPool();
-    private final List<LinkFilter> mLinkFilters = new ArrayList<LinkFilter>();
-    private final List<DownloadFilter> mDownloadFilters = new ArrayList<DownloadFilter>();
-    private final Map<HttpClientHelper, Future<?>> mFutures = new HashMap<HttpClientHelper, Future<?>>();
+    private final int MAX_LOADING_NIO = 1024;
+    private final int MAX_LOADING_VIRTUAL = 4096;
+    private static final long LINK_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final long LINK_SPILL_BYTES = 1024L * 1024 * 1024;
+    private final ExecutorService mExecutor;
+    private final NioFetcher mNioFetcher;
+    private final int mMaxLoading;
+    // fetches that hold a thread for as long as they run, a fraction of the slots when the rest run on selectors
+    private final int mMaxBlocking;
+    private final AtomicInteger mBlocking = new AtomicInteger();
+    private final Queue<Runnable> mBlockingQueue = new ConcurrentLinkedQueue<Runnable>();
+    // taken from the pool but kept without a slot until a blocking fetch ends
+    private final Queue<HttpClientHelper> mWaitingClients = new ConcurrentLinkedQueue<HttpClientHelper>();
+    // link filters narrow the pool and must all pass, download filters each add a kind of file
+    private final List<LinkFilter> mLinkFilters = new CopyOnWriteArrayList<LinkFilter>();
+    private final List<DownloadFilter> mDownloadFilters = new CopyOnWriteArrayList<DownloadFilter>();
+    private volatile LinkFilter mLinkFilter;
+    private volatile DownloadFilter mDownloadFilter;
+    private final ConcurrentMap<HttpClientHelper, FetchTask> mFutures =
+            new ConcurrentHashMap<HttpClientHelper, FetchTask>();
+    private final AtomicInteger mLoading = new AtomicInteger();
+    private final AtomicBoolean mRunning = new AtomicBoolean();
     private String mPath = ".";
-    private final List<LinkTag> mPendingLinks = new ArrayList<LinkTag>();
-    private final List<HttpClientHelper> mFailedDownloadClients = new ArrayList<HttpClientHelper>();
+    private final Queue<HttpClientHelper> mFailedDownloadClients = new ConcurrentLinkedQueue<HttpClientHelper>();
     private final RoundCompleted mRoundCompleted;
-    private final Map<String, LinkTag> mVisitedLinks = new HashMap<String, LinkTag>();
+    private final Frontier mFrontier = new Frontier();
+    private final UrlCanonicalizer mCanonicalizer = new UrlCanonicalizer();
+    // links of pages already parsed, by page url and body
+    private volatile LinkCache mLinkCache = new LinkCache(LINK_CACHE_BYTES);
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+    // wakes tryInvoke when a host delay runs out and nothing else would
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "host-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public Control(RoundCompleted mRoundCompleted) {
+        this(mRoundCompleted, Engine.THREADS);
+    }
+
+    public Control(RoundCompleted mRoundCompleted, Engine engine) {
         super();
         this.mRoundCompleted = mRoundCompleted;
+        ExecutorService executor = engine == Engine.VIRTUAL ? newVirtualThreadExecutor() : null;
+        NioFetcher fetcher = null;
+        if (executor != null) {
+            // a blocked virtual thread costs next to nothing, the host scheduler keeps the load on each site down
+            mMaxLoading = MAX_LOADING_VIRTUAL;
+        } else {
+            executor = Executors.newCachedThreadPool();
+            if (engine == Engine.NIO) {
+                try {
+                    fetcher = new NioFetcher(Math.min(2, Runtime.getRuntime().availableProcessors()),
+                            new Executor() {
+                                @Override
+                                public void execute(Runnable fetch) {
+                                    runBlocking(fetch);
+                                }
+                            });
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            mMaxLoading = fetcher == null ? MAX_LOADING_THREAD : MAX_LOADING_NIO;
+        }
+        mMaxBlocking = fetcher == null ? mMaxLoading : MAX_LOADING_THREAD;
+        mExecutor = executor;
+        mNioFetcher = fetcher;
+        // every blocking fetch may turn into a segmented download holding a connection for each segment
+        HttpClientHelper.setMaxConnections(mMaxBlocking * SegmentedDownload.SEGMENTS);
+        HttpClientHelper.setMaxConnectionsPerRoute(
+                mFrontier.getScheduler().getMaxPerHost() * SegmentedDownload.SEGMENTS);
     }
 
-    public void addFilter(LinkFilter filter) {
-        mLinkFilters.clear();
-        mLinkFilters.add(filter);
+    public synchronized void addFilter(LinkFilter filter) {
+        if (!mLinkFilters.contains(filter)) {
+            mLinkFilters.add(filter);
+            mLinkFilter = Filters.allLinks(mLinkFilters.toArray(new LinkFilter[mLinkFilters.size()]));
+        }
     }
 
-    public void addDownloadFilter(DownloadFilter filter) {
-        mDownloadFilters.clear();
-        mDownloadFilters.add(filter);
+    public synchronized void addDownloadFilter(DownloadFilter filter) {
+        if (!mDownloadFilters.contains(filter)) {
+            mDownloadFilters.add(filter);
+            mDownloadFilter = Filters.anyDownload(
+                    mDownloadFilters.toArray(new DownloadFilter[mDownloadFilters.size()]));
+        }
     }
 
-    // set link
-    public synchronized void addLink(LinkTag lt) {
-        if (mVisitedLinks.containsKey(lt.getLink())) {
-            return;
+    // set link, one that cannot be made canonical is still tried as it is
+    public void addLink(LinkRecord lt) {
+        String uri = mCanonicalizer.canonicalize(lt.getLink());
+        if (uri != null && !uri.equals(lt.getLink())) {
+            lt = new LinkRecord(uri, lt.getText(), lt.getHtml(), lt.getReferrer());
         }
-        for (LinkFilter lf : mLinkFilters) {
-            lf.isDesired(lt);
+        mFrontier.add(lt);
+    }
+
+    // Lets go of the fetch threads, the selector threads and every open connection. The pool stays as it is, a store
+    // is closed by its shutdown hook.
+    public void close() {
+        mRunning.set(false);
+        // fetches that end from here on find nothing to start
+        mFailedDownloadClients.clear();
+        mWaitingClients.clear();
+        mFrontier.getScheduler().clear();
+        if (mNioFetcher != null) {
+            mNioFetcher.shutdown();
         }
-        mVisitedLinks.put(lt.getLink(), lt);
+        mExecutor.shutdown();
+        mTimer.shutdown();
+        HttpClientHelper.clean();
     }
 
-    public void clearLinkFilters() {
+    public synchronized void clearLinkFilters() {
         mLinkFilters.clear();
+        mLinkFilter = null;
     }
 
-    public void clearDownloadFilters() {
+    public synchronized void clearDownloadFilters() {
         mDownloadFilters.clear();
+        mDownloadFilter = null;
     }
 
-    public synchronized void go() {
-        mPendingLinks.clear();
-        for (LinkTag lt : mVisitedLinks.values()) {
-            if (mLinkFilters.isEmpty()) {
-                mPendingLinks.add(lt);
-            } else {
-                for (LinkFilter lf : mLinkFilters) {
-                    if (lf.isDesired(lt)) {
-                        mPendingLinks.add(lt);
-                    }
-                }
-            }
-        }
-        mVisitedLinks.clear();
-        for (LinkTag lt : mPendingLinks) {
-            mVisitedLinks.put(lt.getLink(), lt);
-        }
-
+    public void go() {
+        mFrontier.schedule(mLinkFilter);
+        mRunning.set(true);
         tryInvoke();
     }
 
-    public List<LinkTag> getLinks() {
-        List<LinkTag> list = new ArrayList<>();
-        for (LinkTag lt : mVisitedLinks.values()) {
-            list.add(lt);
-        }
-        return list;
-    }
-
-    public List<LinkTag> getDesiredLinks() {
-        List<LinkTag> list = new ArrayList<>();
-        for (LinkTag lt : mVisitedLinks.values()) {
-            if (mLinkFilters.isEmpty()) {
-                list.add(lt);
-            } else {
-                for (LinkFilter lf : mLinkFilters) {
-                    if (lf.isDesired(lt)) {
-                        list.add(lt);
-                    }
-                }
-            }
-        }
-        return list;
+    public UrlCanonicalizer getCanonicalizer() {
+        return mCanonicalizer;
+    }
+
+    // Hands the links that pass the link filters to visitor, a pool in a store is read as it goes.
+    public void visitDesiredLinks(LinkVisitor visitor) {
+        mFrontier.visit(mLinkFilter, visitor);
+    }
+
+    public void visitLinks(LinkVisitor visitor) {
+        mFrontier.visit(null, visitor);
     }
 
     @Override
@@ -145,18 +243,21 @@ public class Control implements HttpClientHelper.Listener {
         default:
             break;
         }
+        mFrontier.fetched(client.getUri(), false);
         oneShortComplete(client);
     }
 
     @Override
     public void onHttpSuccess(HttpClientHelper client, HttpResponse response, String host) {
+        boolean fetched = true;
         if (isHtmlResponse(response.getHeaders("Content-type"))) {
             InputStream stream = null;
             try {
                 stream = response.getEntity().getContent();
-                String html = getHtml(response, stream);
-                if (html != null) {
-                    visitHtml(html, "utf-8", host);
+                // a page the server says has not changed holds the links it had, they are in the pool already
+                if (!client.isUnchanged() || !mFrontier.hasReferrer(client.getUri())) {
+                    Header type = response.getFirstHeader("Content-Type");
+                    visitHtml(stream, type != null ? type.getValue() : null, client.getUri());
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -168,45 +269,82 @@ public class Control implements HttpClientHelper.Listener {
                 }
             }
         } else if (isDownloadable(response.getHeaders("Content-type"))) {
-            InputStream is = null;
-            BufferedOutputStream bfos = null;
+            String fn = client.getUri().substring(client.getUri().lastIndexOf("/"));
+            File file = new File(mPath + fn);
             try {
-                HttpEntity httpEntity = response.getEntity();
-                is = httpEntity.getContent();
-                String fn = client.getUri().substring(client.getUri().lastIndexOf("/"));
-                bfos = new BufferedOutputStream(new FileOutputStream(mPath + fn));
-                byte[] buffer = new byte[4096];
-                int count = 0;
-                while ((count = is.read(buffer)) > 0) {
-                    bfos.write(buffer, 0, count);
+                if (SegmentedDownload.isSegmentable(response)) {
+                    new SegmentedDownload(client.getUri(), file, mExecutor).run(client, response);
+                } else if (response.getStatusLine().getStatusCode() == 206) {
+                    throw new IOException("Partial content that cannot be resumed: " + client.getUri());
+                } else {
+                    download(response.getEntity(), file);
+                    // an earlier try that could not carry on is of no use now
+                    PartFile.discard(file);
                 }
-                bfos.flush();
-                bfos.close();
             } catch (Exception e) {
                 e.printStackTrace();
-                synchronized (this) {
-                    if (client.getTries() < 3) {
-                        mFailedDownloadClients.add(client);
-                    }
+                fetched = false;
+                if (client.getTries() < 3) {
+                    SegmentedDownload.prepareRetry(client, file);
+                    mFailedDownloadClients.add(client);
                 }
-            } finally {
+            }
+        }
+        mFrontier.fetched(client.getUri(), fetched);
+        oneShortComplete(client);
+    }
+
+    // Fetches go through an http cache in dir from now on, pages fetched again are only revalidated.
+    public void openCache(File dir) throws IOException {
+        HttpClientHelper.setCache(dir);
+    }
+
+    // Parsed pages that no longer fit in memory keep their links in dir, and the next run starts with them.
+    public void openLinkCache(File dir) throws IOException {
+        final LinkCache cache = new LinkCache(LINK_CACHE_BYTES, dir, LINK_SPILL_BYTES);
+        mLinkCache = cache;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.close();
+            }
+        }));
+    }
+
+    // Keeps the link pool in dir from now on, a store left there by an earlier run is carried on with.
+    public void openStore(File dir) throws IOException {
+        openStore(dir, null);
+    }
+
+    // The same with seen in front of the store, which then only looks up urls that seen may have had before.
+    public void openStore(File dir, SeenFilter seen) throws IOException {
+        final CrawlStore store = new CrawlStore(dir, seen);
+        mFrontier.setStore(store);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    is.close();
-                    bfos.close();
+                    store.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-        }
-        oneShortComplete(client);
+        }));
     }
 
-    public synchronized void reset() {
+    public void reset() {
         stop();
-        mLinkFilters.clear();
-        mDownloadFilters.clear();
-        mVisitedLinks.clear();
-        mPendingLinks.clear();
+    }
+
+    public void setHostPolicy(int maxPerHost, long delayMillis) {
+        mFrontier.getScheduler().setMaxPerHost(maxPerHost);
+        HttpClientHelper.setMaxConnectionsPerRoute(
+                mFrontier.getScheduler().getMaxPerHost() * SegmentedDownload.SEGMENTS);
+        mFrontier.getScheduler().setDelay(delayMillis);
+    }
+
+    public void setHostWeight(String host, int weight) {
+        mFrontier.getScheduler().setWeight(host, weight);
     }
 
     public void setPath(String path) {
@@ -215,113 +353,245 @@ public class Control implements HttpClientHelper.Listener {
         }
     }
 
-    public synchronized void stop() {
-        for (Future<?> future : mFutures.values()) {
-            future.cancel(false);
+    public void stop() {
+        mRunning.set(false);
+        for (Map.Entry<HttpClientHelper, FetchTask> entry : mFutures.entrySet()) {
+            // a task that has started gives its slot back in oneShortComplete
+            if (entry.getValue().callOff() && mFutures.remove(entry.getKey(), entry.getValue())) {
+                mFrontier.getScheduler().release(entry.getKey().getUri());
+                mLoading.decrementAndGet();
+            }
         }
-        mPendingLinks.clear();
-        mFutures.clear();
-        mPendingLinks.clear();
-        mLinkFilters.clear();
-        mDownloadFilters.clear();
-        mVisitedLinks.clear();
+        mFailedDownloadClients.clear();
+        HttpClientHelper waiting;
+        while ((waiting = mWaitingClients.poll()) != null) {
+            mFrontier.getScheduler().release(waiting.getUri());
+        }
+        mFrontier.clear();
+        clearLinkFilters();
+        clearDownloadFilters();
     }
 
-    private void addNewLink(LinkTag lt, String host) {
-        String uri = lt.getLink();
-        if (uri == null || uri.length() <= 1 || uri.startsWith("#")) {
+    // The scanner made the link absolute, what is not http or https is dropped here.
+    private void addNewLink(LinkScanner.Link link, String source) {
+        String uri = mCanonicalizer.canonicalize(link.getUrl());
+        if (uri == null) {
             return;
         }
-        if (lt.isHTTPLikeLink()) {
-            if (uri.startsWith("/")) {
-                lt.setLink("http://" + host + uri);
+        mFrontier.add(new LinkRecord(uri, link.getText(), link.getHtml(), mFrontier.referrerId(source)));
+    }
+
+    // The file is sized up front when the length is known, then filled through FileSink.
+    private void download(HttpEntity entity, File file) throws IOException {
+        long length = entity.getContentLength();
+        try (InputStream is = entity.getContent();
+                RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(Math.max(0, length));
+            long copied = FileSink.copy(is, raf.getChannel(), 0, length, null);
+            if (length < 0) {
+                raf.setLength(copied);
             }
-            addLink(lt);
         }
     }
 
-    private String getHtml(HttpResponse response, InputStream stream) {
-        try {
-            StringBuilder html = new StringBuilder();
-            String temp;
-            BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "utf-8"));
-            while ((temp = reader.readLine()) != null) {
-                html.append(temp).append("\n");
+    private boolean isDownloadable(Header[] headers) {
+        DownloadFilter filter = mDownloadFilter;
+        return filter == null || filter.isDesired(headers);
+    }
+
+    private boolean isHtmlResponse(Header[] headers) {
+        for (Header header : headers) {
+            if (header.getValue().startsWith("text/html")) {
+                return true;
             }
-            FileWriter fileWriter = new FileWriter("e:\\tmp\\1.txt");
-            fileWriter.write(html.toString());
-            fileWriter.close();
-            return html.toString();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return null;
+        return false;
     }
 
-    private boolean isDownloadable(Header[] headers) {
-        if (mDownloadFilters.isEmpty()) {
-            return true;
+    private void oneShortComplete(HttpClientHelper client) {
+        if (mFutures.remove(client) != null) {
+            mFrontier.getScheduler().release(client.getUri());
+            mLoading.decrementAndGet();
         }
-        for (DownloadFilter df : mDownloadFilters) {
-            if (df.isDesired(headers))
+        tryInvoke();
+    }
+
+    private boolean acquireSlot() {
+        int loading;
+        while ((loading = mLoading.get()) < mMaxLoading) {
+            if (mLoading.compareAndSet(loading, loading + 1)) {
                 return true;
+            }
         }
         return false;
     }
 
-    private boolean isHtmlResponse(Header[] headers) {
-        for (Header header : headers) {
-            if (header.getValue().startsWith("text/html")) {
+    private boolean acquireBlocking() {
+        int blocking;
+        while ((blocking = mBlocking.get()) < mMaxBlocking) {
+            if (mBlocking.compareAndSet(blocking, blocking + 1)) {
                 return true;
             }
         }
         return false;
     }
 
-    private synchronized void oneShortComplete(HttpClientHelper client) {
-        mFutures.remove(client);
-        tryInvoke();
+    // the selector threads speak plain http and know nothing of the cache or of ranges
+    private boolean runsOnSelector(HttpClientHelper client) {
+        return mNioFetcher != null && !HttpClientHelper.isCaching() && !client.hasRange()
+                && mNioFetcher.accepts(client.getUri());
+    }
+
+    // The future is registered before the task can run, so its completion always finds it.
+    private void submit(HttpClientHelper client) {
+        if (runsOnSelector(client)) {
+            FetchTask task = new FetchTask(mNioFetcher.task(client));
+            mFutures.put(client, task);
+            mNioFetcher.execute(task);
+        } else {
+            FetchTask task = new FetchTask(client);
+            mFutures.put(client, task);
+            runBlocking(task);
+        }
+    }
+
+    // Runs fetch on a thread of its own once fewer than mMaxBlocking do, including the ones NioFetcher falls back on.
+    private void runBlocking(Runnable fetch) {
+        mBlockingQueue.offer(fetch);
+        drainBlocking();
     }
 
-    private void processNode(Node node, String host) {
-        if (node instanceof LinkTag) // <a>
-        {
-            LinkTag link = (LinkTag) node;
-            addNewLink(link, host);
+    private void drainBlocking() {
+        while (!mBlockingQueue.isEmpty() && acquireBlocking()) {
+            final Runnable fetch = mBlockingQueue.poll();
+            if (fetch == null) {
+                mBlocking.decrementAndGet();
+                continue;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch.run();
+                    } finally {
+                        mBlocking.decrementAndGet();
+                        drainBlocking();
+                        if (!mWaitingClients.isEmpty()) {
+                            tryInvoke();
+                        }
+                    }
+                }
+            });
         }
     }
 
-    private synchronized void tryInvoke() {
-        while (!mFailedDownloadClients.isEmpty() && mFutures.size() < MAX_LOADING_THREAD) {
-            HttpClientHelper client = mFailedDownloadClients.remove(0);
-            mFutures.put(client, mCachedExecutor.submit(client));
+    // Looked up by reflection so the code still builds for older releases, which get null.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads need Java 21, falling back to platform threads");
+            return null;
         }
+    }
 
-        while (!mPendingLinks.isEmpty() && mFutures.size() < MAX_LOADING_THREAD) {
-            LinkTag link = mPendingLinks.remove(0);
-            HttpClientHelper client = new HttpClientHelper(link.getLink(), this);
-            mFutures.put(client, mCachedExecutor.submit(client));
+    private void tryInvoke() {
+        while (acquireSlot()) {
+            HttpClientHelper client = mBlocking.get() < mMaxBlocking ? mWaitingClients.poll() : null;
+            if (client == null) {
+                client = mFailedDownloadClients.poll();
+                if (client != null) {
+                    mFrontier.getScheduler().dispatched(client.getUri());
+                } else {
+                    LinkRecord link = mFrontier.poll();
+                    if (link != null) {
+                        client = new HttpClientHelper(link.getLink(), this);
+                    }
+                }
+            }
+            if (client == null) {
+                mLoading.decrementAndGet();
+                break;
+            }
+            if (mBlocking.get() >= mMaxBlocking && !runsOnSelector(client)) {
+                // the slot goes to a fetch that can run now
+                mWaitingClients.offer(client);
+                mLoading.decrementAndGet();
+                continue;
+            }
+            submit(client);
         }
 
-        if (mFutures.isEmpty()) {
+        // a slot is taken before a link is polled, so nothing is in flight once the count reads zero
+        if (mLoading.get() == 0 && !mFrontier.hasPending() && mFailedDownloadClients.isEmpty()
+                && mWaitingClients.isEmpty()
+                && mRunning.compareAndSet(true, false)) {
             mRoundCompleted.roundCompleted();
+        } else if (mRunning.get() && mFrontier.hasPending()) {
+            scheduleWakeup();
         }
     }
 
-    private void visitHtml(String html, String encoding, final String host) {
+    private void scheduleWakeup() {
+        long wait = mFrontier.getScheduler().nextFetchDelay();
+        if (wait > 0 && mWakeupPending.compareAndSet(false, true)) {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mWakeupPending.set(false);
+                    tryInvoke();
+                }
+            }, wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // A page whose url and body were parsed before takes its links from the cache and is not lexed again. The body is
+    // at hand before the lexer starts, so its charset is settled first and it is decoded only once. A page too big to
+    // be held whole is lexed as the rest of it streams in, with the charset its start declares, and is not cached.
+    private void visitHtml(InputStream stream, String contentType, String source) throws IOException {
+        ParserContext context = ParserContext.take();
         try {
-            Parser parser = new Parser();
-            parser.setInputHTML(html);
-            parser.setEncoding(encoding);
-            parser.visitAllNodesWith(new NodeVisitor() {
+            visitHtml(context, stream, contentType, source);
+        } finally {
+            ParserContext.release(context);
+        }
+    }
 
-                @Override
-                public void visitTag(Tag tag) {
-                    processNode(tag, host);
+    private void visitHtml(ParserContext context, InputStream stream, String contentType, String source)
+            throws IOException {
+        boolean whole = context.read(stream);
+        byte[] body = context.getBody();
+        int length = context.getLength();
+        LinkCache cache = mLinkCache;
+        String key = whole ? LinkCache.digest(source, body, length) : null;
+        List<LinkScanner.Link> links = key != null ? cache.get(key) : null;
+        if (links == null) {
+            // the links of a page that is not cached are handed on as the scanner finds them
+            List<LinkScanner.Link> found = key != null ? new ArrayList<LinkScanner.Link>() : null;
+            try {
+                int bom = CharsetResolver.bomLength(body, length);
+                String charset = CharsetResolver.resolve(contentType, body, length);
+                LinkScanner scanner = context.scan(bom, charset, source);
+                LinkScanner.Link link;
+                while ((link = scanner.nextLink()) != null) {
+                    if (found != null) {
+                        found.add(link);
+                    } else {
+                        addNewLink(link, source);
+                    }
                 }
-            });
-        } catch (ParserException e) {
-            e.printStackTrace();
+            } catch (ParserException | UnsupportedEncodingException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (found == null) {
+                return;
+            }
+            cache.put(key, found);
+            links = found;
+        }
+        for (LinkScanner.Link link : links) {
+            addNewLink(link, source);
         }
     }
 }
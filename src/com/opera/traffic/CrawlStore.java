@@ -0,0 +1,621 @@
+package com.opera.traffic;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// The links of a crawl on disk: an append-only log of link records and an open addressing hash index over it that
+// is mapped into memory. A change to a link appends a whole new record and points the index at it, so the log is
+// never rewritten. The index header says how much of the log it covers; when that is not the length of the log, as
+// after a crash, the index is rebuilt from the log and a torn record at its end is cut off. An index that grows or is
+// started over goes to a file of the next generation rather than over the old one, which may still be mapped and on
+// Windows can then be neither replaced nor deleted; older generations are deleted once that is possible.
+//
+// With a SeenFilter in front, a url the filter has certainly not seen is taken as new without a look at the index,
+// and its slot is filled later together with others in slot order, so a large index is not probed at random once for
+// every link found. Only urls the filter may have seen are looked up.
+public class CrawlStore {
+    // link states
+    public static final int NEW = 0;
+    public static final int FETCHED = 1;
+    public static final int FAILED = 2;
+
+    public static final class Record {
+        private final String mUrl;
+        private final String mText;
+        private final String mHtml;
+        private final String mSource;
+        private final int mStatus;
+        private final long mDiscovered;
+        private final long mFetched;
+
+        private Record(String url, String text, String html, String source, int status, long discovered,
+                long fetched) {
+            mUrl = url;
+            mText = text;
+            mHtml = html;
+            mSource = source;
+            mStatus = status;
+            mDiscovered = discovered;
+            mFetched = fetched;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        // the anchor text, or null
+        public String getText() {
+            return mText;
+        }
+
+        // the raw html of the tag the link was found in, or null
+        public String getHtml() {
+            return mHtml;
+        }
+
+        // the page the link was found on, or null
+        public String getSource() {
+            return mSource;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public long getDiscovered() {
+            return mDiscovered;
+        }
+
+        // when the link was last fetched, or 0
+        public long getFetched() {
+            return mFetched;
+        }
+    }
+
+    public interface Visitor {
+        public void visit(Record record);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4a444c53;
+    // magic, capacity, size, unused, covered log length
+    private static final int HEADER = 24;
+    // hash, record offset
+    private static final int SLOT = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // the index has to fit one mapping
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final int MAX_TEXT = 1024;
+    private static final int MAX_HTML = 16 * 1024;
+    // length, crc, status, discovered, fetched, url length
+    private static final int RECORD_PREFIX = 4 + 4 + 1 + 8 + 8 + 4;
+    private static final int BATCH = 64 * 1024;
+    // index files are named links.<generation>.idx
+    private static final String INDEX_PREFIX = "links.";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File mDir;
+    private final File mLogFile;
+    private final RandomAccessFile mLog;
+    private final SeenFilter mSeen;
+    // new urls not in the index yet, with the offset of their latest record
+    private final Map<String, Long> mBatch = new HashMap<String, Long>();
+    // the generation of the index file in use
+    private long mGeneration;
+    private RandomAccessFile mIndex;
+    private MappedByteBuffer mSlots;
+    private int mCapacity;
+    private int mSize;
+    private long mLength;
+
+    public CrawlStore(File dir) throws IOException {
+        this(dir, null);
+    }
+
+    public CrawlStore(File dir, final SeenFilter seen) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        mDir = dir;
+        mLogFile = new File(dir, "links.log");
+        mLog = new RandomAccessFile(mLogFile, "rw");
+        mLength = mLog.length();
+        mGeneration = latestGeneration();
+        if (!openIndex()) {
+            mSeen = seen;
+            rebuild();
+        } else {
+            if (seen != null) {
+                // before mSeen is set, so the scan asks the index
+                scan(new Visitor() {
+                    @Override
+                    public void visit(Record record) {
+                        seen.add(record.getUrl());
+                    }
+                });
+            }
+            mSeen = seen;
+        }
+        deleteOldIndexes();
+    }
+
+    // Returns false when the url is already stored.
+    public boolean add(String url, String text, String source) throws IOException {
+        return add(url, text, null, source);
+    }
+
+    // The same with the html of the tag the link was found in.
+    public synchronized boolean add(String url, String text, String html, String source) throws IOException {
+        long hash = hash(url);
+        boolean unseen = mSeen != null && mSeen.add(url);
+        int slot = unseen ? -1 : find(url, hash);
+        if (slot >= 0 || (!unseen && mBatch.containsKey(url))) {
+            return false;
+        }
+        if (text != null && text.length() > MAX_TEXT) {
+            text = text.substring(0, MAX_TEXT);
+        }
+        if (html != null && html.length() > MAX_HTML) {
+            html = html.substring(0, MAX_HTML);
+        }
+        long offset = write(new Record(url, text, html, source, NEW, System.currentTimeMillis(), 0));
+        if (unseen) {
+            mBatch.put(url, offset);
+            mSize++;
+            if (mBatch.size() >= BATCH) {
+                flushBatch();
+            }
+        } else {
+            point(-slot - 1, hash, offset);
+        }
+        return true;
+    }
+
+    public synchronized void clear() throws IOException {
+        mLog.setLength(0);
+        mLength = 0;
+        mSize = 0;
+        mBatch.clear();
+        if (mSeen != null) {
+            mSeen.clear();
+        }
+        replaceIndex(INITIAL_CAPACITY);
+        cover();
+    }
+
+    public synchronized void close() throws IOException {
+        flushBatch();
+        mSlots.force();
+        mLog.getChannel().force(true);
+        mIndex.close();
+        mLog.close();
+    }
+
+    // Returns null when the url is not stored.
+    public synchronized Record get(String url) throws IOException {
+        long offset = locate(url);
+        return offset >= 0 ? read(offset) : null;
+    }
+
+    // Hands the latest record of every link to visitor, in the order the links were found, without holding the
+    // store while it reads.
+    public void scan(Visitor visitor) throws IOException {
+        long end;
+        synchronized (this) {
+            end = mLength;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile),
+                64 * 1024))) {
+            long offset = 0;
+            while (offset < end) {
+                int length = in.readInt();
+                in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                Record record = decode(ByteBuffer.wrap(payload));
+                if (isLatest(record.getUrl(), offset)) {
+                    visitor.visit(record);
+                }
+                offset += 8 + length;
+            }
+        }
+    }
+
+    // Records a fetch of a stored url.
+    public synchronized void setStatus(String url, int status) throws IOException {
+        if (mBatch.containsKey(url)) {
+            mBatch.put(url, write(changeStatus(read(mBatch.get(url)), status)));
+            return;
+        }
+        long hash = hash(url);
+        int slot = mSeen == null || mSeen.mightContain(url) ? find(url, hash) : -1;
+        if (slot >= 0) {
+            Record old = read(mSlots.getLong(HEADER + slot * SLOT + 8));
+            point(slot, hash, write(changeStatus(old, status)));
+        }
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private static Record changeStatus(Record old, int status) {
+        return new Record(old.getUrl(), old.getText(), old.getHtml(), old.getSource(), status,
+                old.getDiscovered(), System.currentTimeMillis());
+    }
+
+    // The index says it covers the log only while no new url waits in the batch, so a crash before the batch is in
+    // shows up as a mismatch.
+    private void cover() {
+        if (mBatch.isEmpty()) {
+            mSlots.putInt(8, mSize);
+            mSlots.putLong(16, mLength);
+        }
+    }
+
+    // Deletes the index files before the one in use. One that is still mapped, which Windows does not let go of,
+    // is left for a later try.
+    private void deleteOldIndexes() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            long generation = generationOf(file.getName());
+            if (generation >= 0 && generation < mGeneration) {
+                file.delete();
+            }
+        }
+    }
+
+    // The html comes last, a record written before links kept it ends after the source.
+    private static Record decode(ByteBuffer buffer) {
+        int status = buffer.get();
+        long discovered = buffer.getLong();
+        long fetched = buffer.getLong();
+        String url = getString(buffer);
+        String text = getString(buffer);
+        String source = getString(buffer);
+        String html = buffer.hasRemaining() ? getString(buffer) : null;
+        return new Record(url, text, html, source, status, discovered, fetched);
+    }
+
+    private static ByteBuffer encode(Record record) {
+        byte[] url = record.getUrl().getBytes(UTF_8);
+        byte[] text = record.getText() != null ? record.getText().getBytes(UTF_8) : null;
+        byte[] source = record.getSource() != null ? record.getSource().getBytes(UTF_8) : null;
+        byte[] html = record.getHtml() != null ? record.getHtml().getBytes(UTF_8) : null;
+        int length = RECORD_PREFIX - 8 + url.length + 4 + (text != null ? text.length : 0) + 4
+                + (source != null ? source.length : 0) + 4 + (html != null ? html.length : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.put((byte) record.getStatus());
+        buffer.putLong(record.getDiscovered());
+        buffer.putLong(record.getFetched());
+        putString(buffer, url);
+        putString(buffer, text);
+        putString(buffer, source);
+        putString(buffer, html);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    // Returns the slot of url, or -(free slot) - 1 when it is not stored.
+    private int find(String url, long hash) throws IOException {
+        int mask = mCapacity - 1;
+        for (int slot = home(hash);; slot = (slot + 1) & mask) {
+            long stored = mSlots.getLong(HEADER + slot * SLOT);
+            if (stored == 0) {
+                return -slot - 1;
+            }
+            if (stored == hash && url.equals(readUrl(mSlots.getLong(HEADER + slot * SLOT + 8)))) {
+                return slot;
+            }
+        }
+    }
+
+    // Puts the batched urls into the index in the order of their home slots, so the mapped pages are gone through
+    // once, front to back.
+    private void flushBatch() throws IOException {
+        if (mBatch.isEmpty()) {
+            return;
+        }
+        while (mSize * 4L > mCapacity * 3L) {
+            int capacity = mCapacity;
+            grow();
+            if (mCapacity == capacity) {
+                break;
+            }
+        }
+        long[] hashes = new long[mBatch.size()];
+        long[] offsets = new long[hashes.length];
+        long[] order = new long[hashes.length];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : mBatch.entrySet()) {
+            hashes[i] = hash(entry.getKey());
+            offsets[i] = entry.getValue();
+            order[i] = ((long) home(hashes[i]) << 32) | i;
+            i++;
+        }
+        Arrays.sort(order);
+        for (long key : order) {
+            int j = (int) key;
+            put(hashes[j], offsets[j]);
+        }
+        mBatch.clear();
+        cover();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    // the generation of an index file name, or -1 for any other file
+    private static long generationOf(String name) {
+        if (!name.startsWith(INDEX_PREFIX) || !name.endsWith(INDEX_SUFFIX)
+                || name.length() <= INDEX_PREFIX.length() + INDEX_SUFFIX.length()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(INDEX_PREFIX.length(), name.length() - INDEX_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void grow() throws IOException {
+        if (mCapacity == MAX_CAPACITY) {
+            if (mSize * 10L > mCapacity * 9L) {
+                throw new IOException("Crawl store is full");
+            }
+            return;
+        }
+        MappedByteBuffer old = mSlots;
+        int oldCapacity = mCapacity;
+        replaceIndex(oldCapacity * 2);
+        // the hashes are in the slots, so nothing has to be read from the log
+        for (int i = 0; i < oldCapacity; i++) {
+            long hash = old.getLong(HEADER + i * SLOT);
+            if (hash != 0) {
+                put(hash, old.getLong(HEADER + i * SLOT + 8));
+            }
+        }
+        cover();
+    }
+
+    // 64 bit FNV-1a, 0 marks a free slot
+    private static long hash(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private int home(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (mCapacity - 1);
+    }
+
+    private File indexFile(long generation) {
+        return new File(mDir, INDEX_PREFIX + generation + INDEX_SUFFIX);
+    }
+
+    private synchronized boolean isLatest(String url, long offset) throws IOException {
+        return locate(url) == offset;
+    }
+
+    // the offset of the latest record of url, or -1
+    private long locate(String url) throws IOException {
+        Long batched = mBatch.get(url);
+        if (batched != null) {
+            return batched;
+        }
+        if (mSeen != null && !mSeen.mightContain(url)) {
+            return -1;
+        }
+        int slot = find(url, hash(url));
+        return slot >= 0 ? mSlots.getLong(HEADER + slot * SLOT + 8) : -1;
+    }
+
+    // the highest generation of an index file in the directory, or 0
+    private long latestGeneration() {
+        long latest = 0;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                latest = Math.max(latest, generationOf(file.getName()));
+            }
+        }
+        return latest;
+    }
+
+    // Uses the latest index on disk when it covers exactly the log. The header is read, not mapped, so an index that
+    // does not cover the log leaves no mapping behind.
+    private boolean openIndex() throws IOException {
+        File file = indexFile(mGeneration);
+        if (!file.exists() || file.length() < HEADER) {
+            return false;
+        }
+        RandomAccessFile index = new RandomAccessFile(file, "rw");
+        int magic = index.readInt();
+        int capacity = index.readInt();
+        index.seek(16);
+        long covered = index.readLong();
+        if (magic != MAGIC || capacity < INITIAL_CAPACITY || capacity > MAX_CAPACITY
+                || Integer.bitCount(capacity) != 1 || index.length() != HEADER + (long) capacity * SLOT
+                || covered != mLength) {
+            index.close();
+            return false;
+        }
+        mIndex = index;
+        mCapacity = capacity;
+        mSlots = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, index.length());
+        mSize = mSlots.getInt(8);
+        return true;
+    }
+
+    // Points slot at the record written at offset.
+    private void point(int slot, long hash, long offset) throws IOException {
+        boolean added = mSlots.getLong(HEADER + slot * SLOT) == 0;
+        mSlots.putLong(HEADER + slot * SLOT, hash);
+        mSlots.putLong(HEADER + slot * SLOT + 8, offset);
+        if (added) {
+            mSize++;
+        }
+        cover();
+        if (added && mSize * 4L > mCapacity * 3L) {
+            grow();
+        }
+    }
+
+    // places a known distinct entry in the first free slot
+    private void put(long hash, long offset) {
+        int mask = mCapacity - 1;
+        int slot = home(hash);
+        while (mSlots.getLong(HEADER + slot * SLOT) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mSlots.putLong(HEADER + slot * SLOT, hash);
+        mSlots.putLong(HEADER + slot * SLOT + 8, offset);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private Record read(long offset) throws IOException {
+        ByteBuffer prefix = readAt(offset, 4);
+        ByteBuffer payload = readAt(offset + 8, prefix.getInt());
+        return decode(payload);
+    }
+
+    private ByteBuffer readAt(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        FileChannel channel = mLog.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private String readUrl(long offset) throws IOException {
+        ByteBuffer prefix = readAt(offset + RECORD_PREFIX - 4, 4);
+        ByteBuffer url = readAt(offset + RECORD_PREFIX, prefix.getInt());
+        return new String(url.array(), 0, url.limit(), UTF_8);
+    }
+
+    // Indexes the log from the start, the latest record of a url wins and anything after the first damaged record
+    // is dropped.
+    private void rebuild() throws IOException {
+        mSize = 0;
+        replaceIndex(INITIAL_CAPACITY);
+        long end = mLength;
+        long offset = 0;
+        mLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile),
+                64 * 1024))) {
+            while (offset + 8 <= end) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < RECORD_PREFIX - 8 || offset + 8 + length > end) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if ((int) check.getValue() != crc) {
+                    break;
+                }
+                // the record is on disk already, only the index moves on
+                mLength = offset + 8 + length;
+                String url = decode(ByteBuffer.wrap(payload)).getUrl();
+                if (mSeen != null) {
+                    mSeen.add(url);
+                }
+                long hash = hash(url);
+                int slot = find(url, hash);
+                boolean added = slot < 0;
+                slot = added ? -slot - 1 : slot;
+                mSlots.putLong(HEADER + slot * SLOT, hash);
+                mSlots.putLong(HEADER + slot * SLOT + 8, offset);
+                offset = mLength;
+                if (added && ++mSize * 4L > mCapacity * 3L) {
+                    grow();
+                }
+            }
+        }
+        if (mLength < end) {
+            System.err.println("Crawl store log cut at " + mLength + " of " + end + " bytes");
+            mLog.setLength(mLength);
+        }
+        cover();
+    }
+
+    // Starts an empty index of the given capacity in the file of the next generation, which is used from then on.
+    // It is only trusted on the next start once the covered length is written. The mapping of the old index stays
+    // valid, grow still reads from it.
+    private void replaceIndex(int capacity) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(indexFile(mGeneration + 1), "rw");
+        index.setLength(0);
+        index.setLength(HEADER + (long) capacity * SLOT);
+        MappedByteBuffer slots = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, index.length());
+        slots.putInt(0, MAGIC);
+        slots.putInt(4, capacity);
+        slots.putInt(8, 0);
+        // covers nothing until the caller has filled it
+        slots.putLong(16, -1);
+        if (mIndex != null) {
+            mIndex.close();
+        }
+        mIndex = index;
+        mSlots = slots;
+        mCapacity = capacity;
+        mGeneration++;
+        deleteOldIndexes();
+    }
+
+    // Appends the record to the log and returns its offset.
+    private long write(Record record) throws IOException {
+        ByteBuffer buffer = encode(record);
+        long offset = mLength;
+        FileChannel channel = mLog.getChannel();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        mLength += buffer.limit();
+        return offset;
+    }
+}
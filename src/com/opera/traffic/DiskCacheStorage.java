@@ -0,0 +1,120 @@
+package com.opera.traffic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.impl.client.cache.DefaultHttpCacheEntrySerializer;
+
+// The http cache kept on disk between runs. Each entry, headers and body together, is serialized to a file named
+// after a hash of its key and only read when that key is asked for. Writes go through a temporary file, so a crash
+// leaves the old entry or the new one.
+public class DiskCacheStorage implements HttpCacheStorage {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int LOCKS = 64;
+
+    private final File mDir;
+    private final HttpCacheEntrySerializer mSerializer = new DefaultHttpCacheEntrySerializer();
+    // entries are locked by the hash of their key, updates of different pages do not wait for each other
+    private final Object[] mLocks = new Object[LOCKS];
+
+    public DiskCacheStorage(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        mDir = dir;
+        for (int i = 0; i < LOCKS; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        synchronized (lockOf(key)) {
+            return read(fileOf(key));
+        }
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        synchronized (lockOf(key)) {
+            write(fileOf(key), entry);
+        }
+    }
+
+    @Override
+    public void removeEntry(String key) throws IOException {
+        synchronized (lockOf(key)) {
+            File file = fileOf(key);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+        }
+    }
+
+    @Override
+    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        synchronized (lockOf(key)) {
+            File file = fileOf(key);
+            HttpCacheEntry entry = callback.update(read(file));
+            if (entry != null) {
+                write(file, entry);
+            } else if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+        }
+    }
+
+    private File fileOf(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            }
+            return new File(mDir, sb.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Object lockOf(String key) {
+        return mLocks[(key.hashCode() & Integer.MAX_VALUE) % LOCKS];
+    }
+
+    // A missing entry or one that cannot be read any more is a miss.
+    private HttpCacheEntry read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            return mSerializer.readFrom(is);
+        } catch (IOException e) {
+            // torn or written by another version of the library
+            file.delete();
+            return null;
+        }
+    }
+
+    private void write(File file, HttpCacheEntry entry) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            mSerializer.writeTo(entry, os);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
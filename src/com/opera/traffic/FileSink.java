@@ -0,0 +1,81 @@
+package com.opera.traffic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Copies a response body into a FileChannel at a given position. The body is gathered into a large direct buffer
+// and written with one positional write per buffer, so concurrent segments can share the channel. Buffers are
+// pooled rather than per thread, since a virtual thread lives for one fetch only.
+public final class FileSink {
+    public interface Progress {
+        public void written(long bytes) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 16;
+
+    private static final class Buffers {
+        private final ByteBuffer mDirect = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+    }
+
+    private static final Queue<Buffers> sPool = new ConcurrentLinkedQueue<Buffers>();
+
+    private FileSink() {
+    }
+
+    // Copies count bytes, or up to the end of the stream when count is negative, and returns how many were copied.
+    public static long copy(InputStream is, FileChannel channel, long position, long count, Progress progress)
+            throws IOException {
+        Buffers buffers = sPool.poll();
+        if (buffers == null) {
+            buffers = new Buffers();
+        }
+        ByteBuffer buffer = buffers.mDirect;
+        byte[] chunk = buffers.mChunk;
+        long copied = 0;
+        try {
+            boolean eof = false;
+            while (!eof && (count < 0 || copied < count)) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    int want = Math.min(chunk.length, buffer.remaining());
+                    if (count >= 0) {
+                        want = (int) Math.min(want, count - copied - buffer.position());
+                        if (want == 0) {
+                            break;
+                        }
+                    }
+                    int n = is.read(chunk, 0, want);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    buffer.put(chunk, 0, n);
+                }
+                buffer.flip();
+                int length = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                copied += length;
+                if (progress != null && length > 0) {
+                    progress.written(length);
+                }
+            }
+        } finally {
+            if (sPool.size() < MAX_POOLED) {
+                sPool.offer(buffers);
+            }
+        }
+        if (count >= 0 && copied < count) {
+            throw new IOException("Premature end of stream, " + copied + " of " + count + " bytes");
+        }
+        return copied;
+    }
+}
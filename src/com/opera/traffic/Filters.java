@@ -0,0 +1,251 @@
+package com.opera.traffic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.http.Header;
+
+// AND, OR and NOT over link and download filters. The children of an expression are put in order of cost when it is
+// built, so cheap tests such as a domain run before a title regex over toHtml(), and evaluation stops at the first
+// child that decides the outcome. Compilable terms under one OR are folded into a single LinkFilterCompiler matcher.
+public final class Filters {
+    // A filter that knows roughly what one test costs.
+    public interface Costed {
+        public int getCost();
+    }
+
+    public static final int CHEAP = 1;
+    public static final int MEDIUM = 4;
+    public static final int EXPENSIVE = 16;
+
+    private static final Comparator<Object> BY_COST = new Comparator<Object>() {
+        @Override
+        public int compare(Object a, Object b) {
+            return Integer.compare(costOf(a), costOf(b));
+        }
+    };
+
+    private abstract static class Node<F, T> implements Costed {
+        private final F[] mChildren;
+        private final boolean mAll;
+        private final int mCost;
+
+        private Node(F[] children, boolean all) {
+            // a stable sort, children of the same cost keep the order they were given in
+            Arrays.sort(children, BY_COST);
+            mChildren = children;
+            mAll = all;
+            int cost = 0;
+            for (F child : children) {
+                cost += costOf(child);
+            }
+            mCost = Math.max(CHEAP, cost);
+        }
+
+        protected abstract boolean test(F filter, T value);
+
+        protected boolean evaluate(T value) {
+            for (F child : mChildren) {
+                if (test(child, value) != mAll) {
+                    return !mAll;
+                }
+            }
+            return mAll;
+        }
+
+        @Override
+        public int getCost() {
+            return mCost;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == null || o.getClass() != getClass()) {
+                return false;
+            }
+            Node<?, ?> other = (Node<?, ?>) o;
+            return mAll == other.mAll && Arrays.equals(mChildren, other.mChildren);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(mChildren) * 2 + (mAll ? 1 : 0);
+        }
+    }
+
+    private static final class LinkNode extends Node<Control.LinkFilter, LinkRecord> implements Control.LinkFilter {
+        private LinkNode(Control.LinkFilter[] children, boolean all) {
+            super(children, all);
+        }
+
+        @Override
+        public boolean isDesired(LinkRecord lt) {
+            return evaluate(lt);
+        }
+
+        @Override
+        protected boolean test(Control.LinkFilter filter, LinkRecord lt) {
+            return filter.isDesired(lt);
+        }
+    }
+
+    private static final class DownloadNode extends Node<Control.DownloadFilter, Header[]> implements
+            Control.DownloadFilter {
+        private DownloadNode(Control.DownloadFilter[] children, boolean all) {
+            super(children, all);
+        }
+
+        @Override
+        public boolean isDesired(Header[] headers) {
+            return evaluate(headers);
+        }
+
+        @Override
+        protected boolean test(Control.DownloadFilter filter, Header[] headers) {
+            return filter.isDesired(headers);
+        }
+    }
+
+    private static final class LinkNot implements Control.LinkFilter, Costed {
+        private final Control.LinkFilter mFilter;
+
+        private LinkNot(Control.LinkFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        public boolean isDesired(LinkRecord lt) {
+            return !mFilter.isDesired(lt);
+        }
+
+        @Override
+        public int getCost() {
+            return costOf(mFilter);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LinkNot && ((LinkNot) o).mFilter.equals(mFilter);
+        }
+
+        @Override
+        public int hashCode() {
+            return ~mFilter.hashCode();
+        }
+    }
+
+    private static final class DownloadNot implements Control.DownloadFilter, Costed {
+        private final Control.DownloadFilter mFilter;
+
+        private DownloadNot(Control.DownloadFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        public boolean isDesired(Header[] headers) {
+            return !mFilter.isDesired(headers);
+        }
+
+        @Override
+        public int getCost() {
+            return costOf(mFilter);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DownloadNot && ((DownloadNot) o).mFilter.equals(mFilter);
+        }
+
+        @Override
+        public int hashCode() {
+            return ~mFilter.hashCode();
+        }
+    }
+
+    private Filters() {
+    }
+
+    public static int costOf(Object filter) {
+        return filter instanceof Costed ? ((Costed) filter).getCost() : MEDIUM;
+    }
+
+    public static Control.LinkFilter allLinks(Control.LinkFilter... filters) {
+        List<Control.LinkFilter> children = flatten(filters, true);
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        return new LinkNode(children.toArray(new Control.LinkFilter[children.size()]), true);
+    }
+
+    public static Control.LinkFilter anyLink(Control.LinkFilter... filters) {
+        List<Control.LinkFilter> children = new ArrayList<Control.LinkFilter>();
+        LinkFilterCompiler compiler = new LinkFilterCompiler();
+        int compiled = 0;
+        for (Control.LinkFilter filter : flatten(filters, false)) {
+            if (filter instanceof LinkFilterCompiler.Compilable) {
+                compiler.add(filter);
+                compiled++;
+            } else {
+                children.add(filter);
+            }
+        }
+        if (compiled > 0) {
+            children.add(compiler.compile());
+        }
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        return new LinkNode(children.toArray(new Control.LinkFilter[children.size()]), false);
+    }
+
+    public static Control.LinkFilter notLink(Control.LinkFilter filter) {
+        return filter instanceof LinkNot ? ((LinkNot) filter).mFilter : new LinkNot(filter);
+    }
+
+    public static Control.DownloadFilter allDownloads(Control.DownloadFilter... filters) {
+        List<Control.DownloadFilter> children = flatten(filters, true);
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        return new DownloadNode(children.toArray(new Control.DownloadFilter[children.size()]), true);
+    }
+
+    public static Control.DownloadFilter anyDownload(Control.DownloadFilter... filters) {
+        List<Control.DownloadFilter> children = flatten(filters, false);
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        return new DownloadNode(children.toArray(new Control.DownloadFilter[children.size()]), false);
+    }
+
+    public static Control.DownloadFilter notDownload(Control.DownloadFilter filter) {
+        return filter instanceof DownloadNot ? ((DownloadNot) filter).mFilter : new DownloadNot(filter);
+    }
+
+    // Lifts the children of nested nodes of the same kind and drops repeated filters.
+    private static <F> List<F> flatten(F[] filters, boolean all) {
+        if (filters.length == 0) {
+            throw new IllegalArgumentException("No filters");
+        }
+        List<F> children = new ArrayList<F>();
+        for (F filter : filters) {
+            if (filter instanceof Node && ((Node<?, ?>) filter).mAll == all) {
+                @SuppressWarnings("unchecked")
+                F[] nested = ((Node<F, ?>) filter).mChildren;
+                Collections.addAll(children, nested);
+            } else {
+                children.add(filter);
+            }
+        }
+        List<F> unique = new ArrayList<F>();
+        for (F child : children) {
+            if (!unique.contains(child)) {
+                unique.add(child);
+            }
+        }
+        return unique;
+    }
+}
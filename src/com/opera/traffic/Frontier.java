@@ -0,0 +1,186 @@
+package com.opera.traffic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// The link pool and the links waiting to be fetched. Fetch threads add and take links without a shared lock, and
+// pending links are handed out host by host. The pool is kept in memory unless a CrawlStore is set, then it lives on
+// disk with the state of every link and a new round skips the links already fetched.
+public class Frontier {
+    private final HostScheduler mPending = new HostScheduler();
+    // a record is its own key, it compares by url
+    private final Set<LinkRecord> mVisited = Collections.newSetFromMap(new ConcurrentHashMap<LinkRecord, Boolean>());
+    // pages that referred to links, a record keeps only the index
+    private final ConcurrentMap<String, Integer> mReferrerIds = new ConcurrentHashMap<String, Integer>();
+    // only appended to, under its own lock
+    private final List<String> mReferrers = new ArrayList<String>();
+    private volatile CrawlStore mStore;
+
+    // returns false when the link is already in the pool
+    public boolean add(LinkRecord lt) {
+        CrawlStore store = mStore;
+        if (store == null) {
+            return mVisited.add(lt);
+        }
+        try {
+            return store.add(lt.getLink(), lt.getText(), lt.getHtml(), getReferrer(lt.getReferrer()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public void clear() {
+        mPending.clear();
+        mVisited.clear();
+        synchronized (mReferrers) {
+            mReferrerIds.clear();
+            mReferrers.clear();
+        }
+        CrawlStore store = mStore;
+        if (store != null) {
+            try {
+                store.clear();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Records the outcome of a fetch, only a store keeps it.
+    public void fetched(String url, boolean success) {
+        CrawlStore store = mStore;
+        if (store != null) {
+            try {
+                store.setStatus(url, success ? CrawlStore.FETCHED : CrawlStore.FAILED);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public String getReferrer(int id) {
+        synchronized (mReferrers) {
+            return id >= 0 && id < mReferrers.size() ? mReferrers.get(id) : null;
+        }
+    }
+
+    public HostScheduler getScheduler() {
+        return mPending;
+    }
+
+    // Hands every link of the pool that filter desires to visitor, all of them when filter is null. A store is read as
+    // it goes and no more than one of its links is in memory at a time.
+    public void visit(final Control.LinkFilter filter, final Control.LinkVisitor visitor) {
+        CrawlStore store = mStore;
+        if (store == null) {
+            for (LinkRecord lt : mVisited) {
+                if (filter == null || filter.isDesired(lt)) {
+                    visitor.visit(lt);
+                }
+            }
+            return;
+        }
+        try {
+            store.scan(new CrawlStore.Visitor() {
+                @Override
+                public void visit(CrawlStore.Record record) {
+                    LinkRecord lt = toLink(record);
+                    if (filter == null || filter.isDesired(lt)) {
+                        visitor.visit(lt);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // true when links found on url were added since the pool was last cleared
+    public boolean hasReferrer(String url) {
+        return mReferrerIds.containsKey(url);
+    }
+
+    public boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    public LinkRecord poll() {
+        return mPending.poll();
+    }
+
+    // The id of a page that refers to links, the same for every link found on it.
+    public int referrerId(String url) {
+        if (url == null) {
+            return LinkRecord.NO_REFERRER;
+        }
+        Integer id = mReferrerIds.get(url);
+        if (id == null) {
+            synchronized (mReferrers) {
+                id = mReferrerIds.get(url);
+                if (id == null) {
+                    id = mReferrers.size();
+                    mReferrers.add(url);
+                    mReferrerIds.put(url, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    // Narrow the pool to the links filter desires and queue each of them once for fetching. A store is not narrowed,
+    // the link filters only ever narrow until everything is cleared, and what it has fetched already is not queued.
+    public void schedule(final Control.LinkFilter filter) {
+        CrawlStore store = mStore;
+        mPending.clear();
+        if (store == null) {
+            final List<LinkRecord> links = new ArrayList<LinkRecord>();
+            visit(filter, new Control.LinkVisitor() {
+                @Override
+                public void visit(LinkRecord lt) {
+                    links.add(lt);
+                }
+            });
+            mVisited.clear();
+            for (LinkRecord lt : links) {
+                if (add(lt)) {
+                    mPending.add(lt);
+                }
+            }
+            return;
+        }
+        try {
+            store.scan(new CrawlStore.Visitor() {
+                @Override
+                public void visit(CrawlStore.Record record) {
+                    if (record.getStatus() != CrawlStore.FETCHED) {
+                        LinkRecord lt = toLink(record);
+                        if (filter == null || filter.isDesired(lt)) {
+                            mPending.add(lt);
+                        }
+                    }
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Moves the pool to store, links already in memory are added to it.
+    public void setStore(CrawlStore store) {
+        mStore = store;
+        for (LinkRecord lt : mVisited) {
+            add(lt);
+        }
+        mVisited.clear();
+    }
+
+    private LinkRecord toLink(CrawlStore.Record record) {
+        return new LinkRecord(record.getUrl(), record.getText(), record.getHtml(), referrerId(record.getSource()));
+    }
+}
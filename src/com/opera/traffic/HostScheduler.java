@@ -0,0 +1,189 @@
+package com.opera.traffic;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pending links kept in one queue per host. Hosts take turns, a host with weight n gets up to n links per turn, and
+// no host is given more than its concurrency limit or links closer together than its delay.
+public class HostScheduler {
+    private static final class HostQueue {
+        private final Queue<LinkRecord> mLinks = new ConcurrentLinkedQueue<LinkRecord>();
+        private final AtomicInteger mActive = new AtomicInteger();
+        private final AtomicLong mNextFetch = new AtomicLong();
+        private final AtomicBoolean mInRing = new AtomicBoolean();
+        private final AtomicInteger mCredit = new AtomicInteger();
+        private volatile int mWeight = 1;
+
+        private LinkRecord take(long now, int maxActive, long delay) {
+            long next = mNextFetch.get();
+            if (now < next || mLinks.isEmpty()) {
+                return null;
+            }
+            int active;
+            do {
+                active = mActive.get();
+                if (active >= maxActive) {
+                    return null;
+                }
+            } while (!mActive.compareAndSet(active, active + 1));
+            LinkRecord lt = null;
+            if (mNextFetch.compareAndSet(next, now + delay)) {
+                lt = mLinks.poll();
+            }
+            if (lt == null) {
+                mActive.decrementAndGet();
+            }
+            return lt;
+        }
+    }
+
+    private final ConcurrentMap<String, HostQueue> mHosts = new ConcurrentHashMap<String, HostQueue>();
+    private final ConcurrentLinkedDeque<HostQueue> mRing = new ConcurrentLinkedDeque<HostQueue>();
+    private final AtomicInteger mRingSize = new AtomicInteger();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private volatile int mMaxPerHost = 4;
+    private volatile long mDelay = 0;
+
+    public static String hostOf(String url) {
+        int start = url.indexOf("://");
+        start = start == -1 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        return url.substring(start, end).toLowerCase();
+    }
+
+    public void add(LinkRecord lt) {
+        HostQueue queue = getQueue(lt.getHost());
+        queue.mLinks.offer(lt);
+        mSize.incrementAndGet();
+        enterRing(queue);
+    }
+
+    public void clear() {
+        for (HostQueue queue : mHosts.values()) {
+            while (queue.mLinks.poll() != null) {
+                mSize.decrementAndGet();
+            }
+        }
+    }
+
+    // count a fetch that did not come out of poll(), e.g. a retried download
+    public void dispatched(String url) {
+        getQueue(hostOf(url)).mActive.incrementAndGet();
+    }
+
+    public boolean isEmpty() {
+        return mSize.get() <= 0;
+    }
+
+    // Milliseconds until a queued host may be fetched again, or -1 when nothing is held back by a delay.
+    public long nextFetchDelay() {
+        long now = System.currentTimeMillis();
+        long wait = -1;
+        for (HostQueue queue : mHosts.values()) {
+            if (!queue.mLinks.isEmpty() && queue.mActive.get() < mMaxPerHost) {
+                long left = Math.max(0, queue.mNextFetch.get() - now);
+                if (wait == -1 || left < wait) {
+                    wait = left;
+                }
+            }
+        }
+        return wait;
+    }
+
+    public LinkRecord poll() {
+        long now = System.currentTimeMillis();
+        int turns = mRingSize.get();
+        for (int i = 0; i < turns; i++) {
+            HostQueue queue = mRing.pollFirst();
+            if (queue == null) {
+                break;
+            }
+            LinkRecord lt = queue.take(now, mMaxPerHost, mDelay);
+            if (lt != null) {
+                mSize.decrementAndGet();
+                // keep the turn while the host has credit left
+                if (queue.mCredit.decrementAndGet() > 0) {
+                    mRing.offerFirst(queue);
+                } else {
+                    queue.mCredit.set(queue.mWeight);
+                    mRing.offerLast(queue);
+                }
+                return lt;
+            }
+            queue.mCredit.set(queue.mWeight);
+            if (queue.mLinks.isEmpty()) {
+                leaveRing(queue);
+            } else {
+                mRing.offerLast(queue);
+            }
+        }
+        return null;
+    }
+
+    public void release(String url) {
+        HostQueue queue = mHosts.get(hostOf(url));
+        if (queue != null) {
+            queue.mActive.decrementAndGet();
+        }
+    }
+
+    public int getMaxPerHost() {
+        return mMaxPerHost;
+    }
+
+    public void setDelay(long delay) {
+        mDelay = Math.max(0, delay);
+    }
+
+    public void setMaxPerHost(int max) {
+        mMaxPerHost = Math.max(1, max);
+    }
+
+    public void setWeight(String host, int weight) {
+        HostQueue queue = getQueue(host.toLowerCase());
+        queue.mWeight = Math.max(1, weight);
+        queue.mCredit.set(queue.mWeight);
+    }
+
+    private void enterRing(HostQueue queue) {
+        if (queue.mInRing.compareAndSet(false, true)) {
+            mRingSize.incrementAndGet();
+            mRing.offerLast(queue);
+        }
+    }
+
+    // a link may have been added after the queue looked empty, so check again once out of the ring
+    private void leaveRing(HostQueue queue) {
+        mRingSize.decrementAndGet();
+        queue.mInRing.set(false);
+        if (!queue.mLinks.isEmpty()) {
+            enterRing(queue);
+        }
+    }
+
+    private HostQueue getQueue(String host) {
+        HostQueue queue = mHosts.get(host);
+        if (queue == null) {
+            HostQueue created = new HostQueue();
+            queue = mHosts.putIfAbsent(host, created);
+            if (queue == null) {
+                queue = created;
+                queue.mCredit.set(queue.mWeight);
+            }
+        }
+        return queue;
+    }
+}
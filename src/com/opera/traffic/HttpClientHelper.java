@@ -1,18 +1,27 @@
 package com.opera.traffic;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
-import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.config.RequestConfig.Builder;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 
@@ -28,20 +37,89 @@ public class HttpClientHelper implements Runnable {
         public void onHttpSuccess(HttpClientHelper client, HttpResponse response, String host);
     }
 
-    private static Vector<CloseableHttpClient> mHttpClients = new Vector<CloseableHttpClient>();
+    static final int TIMEOUT = 10000;
+    static final int MAX_REDIRECTS = 1;
+
+    private static final int MAX_CONNECTIONS = 64;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 8;
+    private static final int IDLE_CONNECTION_SECONDS = 30;
+    // pages are cached, anything longer is a download and passes by the cache
+    private static final int MAX_CACHED_BYTES = 2 * 1024 * 1024;
+
+    // One client for every fetch, so connections to a host stay open and are reused by the next request.
+    private static final PoolingHttpClientConnectionManager mConnectionManager =
+            new PoolingHttpClientConnectionManager();
+    // a client built on a shared manager starts no evictor of its own, so the one for the pool is started here
+    private static final IdleConnectionEvictor mEvictor = new IdleConnectionEvictor(mConnectionManager,
+            IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS, IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS);
+    private static volatile CloseableHttpClient mHttpClient;
+    private static volatile boolean mCaching;
+
+    static {
+        mConnectionManager.setMaxTotal(MAX_CONNECTIONS);
+        mConnectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        // a pooled connection the server may have dropped is checked before it is handed out again
+        mConnectionManager.setValidateAfterInactivity(2000);
+        // the request's own timeout only applies once the connection is made, this one covers the TLS handshake
+        mConnectionManager.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(TIMEOUT).build());
+        mHttpClient = build(HttpClientBuilder.create());
+        mEvictor.start();
+    }
 
     private final Listener mListener;
     private final String mUri;
     private int mTries;
+    private volatile HttpGet mRequest;
+    private CacheResponseStatus mCacheStatus;
+    private long mRangeStart = -1;
+    private String mRangeValidator;
 
     public static void clean() {
-        for (CloseableHttpClient client : mHttpClients) {
-            try {
-                client.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        try {
+            mHttpClient.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        mEvictor.shutdown();
+        mConnectionManager.shutdown();
+    }
+
+    public static boolean isCaching() {
+        return mCaching;
+    }
+
+    // From now on fetches go through an http cache kept in dir. A stored page is asked for again with
+    // If-None-Match and If-Modified-Since, and a 304 answer is served from the cache.
+    public static void setCache(File dir) throws IOException {
+        CacheConfig config = CacheConfig.custom().setMaxObjectSize(MAX_CACHED_BYTES).setSharedCache(false).build();
+        CloseableHttpClient old = mHttpClient;
+        mHttpClient = build(CachingHttpClientBuilder.create().setCacheConfig(config)
+                .setHttpCacheStorage(new DiskCacheStorage(dir)));
+        mCaching = true;
+        // the pool is shared, so this only releases what the old client holds itself
+        old.close();
+    }
+
+    // Raise the pool to the number of fetches that may block on it at once, so none waits for a connection.
+    public static void setMaxConnections(int max) {
+        mConnectionManager.setMaxTotal(Math.max(MAX_CONNECTIONS, max));
+    }
+
+    // Raise the connections to one host to the number of requests that may be made to it at once.
+    public static void setMaxConnectionsPerRoute(int max) {
+        mConnectionManager.setDefaultMaxPerRoute(Math.max(MAX_CONNECTIONS_PER_ROUTE, max));
+    }
+
+    // For requests made outside a helper, such as the extra ranges of a segmented download.
+    static HttpResponse execute(HttpGet httpRequest) throws IOException {
+        configure(httpRequest, true);
+        return mHttpClient.execute(httpRequest);
+    }
+
+    // the connection manager outlives a client that is replaced
+    private static CloseableHttpClient build(HttpClientBuilder builder) {
+        return builder.setConnectionManager(mConnectionManager).setConnectionManagerShared(true)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE).build();
     }
 
     public HttpClientHelper(String uri, Listener l) {
@@ -50,6 +128,34 @@ public class HttpClientHelper implements Runnable {
         mTries = 0;
     }
 
+    Listener getListener() {
+        return mListener;
+    }
+
+    // a fetch made by another engine still counts as a try
+    void countTry() {
+        mTries++;
+    }
+
+    // Drops the connection of the request in flight, a listener that has read all it wants calls this so the rest of
+    // the body is not drained into the pool.
+    public void abort() {
+        HttpGet httpRequest = mRequest;
+        if (httpRequest != null) {
+            httpRequest.abort();
+        }
+    }
+
+    // The next try asks for the entity from start on, as long as it still matches validator.
+    public void setRange(long start, String validator) {
+        mRangeStart = start;
+        mRangeValidator = validator;
+    }
+
+    public boolean hasRange() {
+        return mRangeStart >= 0;
+    }
+
     public String getUri() {
         return mUri;
     }
@@ -58,25 +164,35 @@ public class HttpClientHelper implements Runnable {
         return mTries;
     }
 
+    // True when the last response came from the cache, unchanged since it was stored.
+    public boolean isUnchanged() {
+        return mCacheStatus == CacheResponseStatus.CACHE_HIT || mCacheStatus == CacheResponseStatus.VALIDATED;
+    }
+
     @Override
     public void run() {
         if (mUri == null) {
             return;
         }
-        mTries++;
-        CloseableHttpClient httpClient = null;
-        if (!mHttpClients.isEmpty()) {
-            httpClient = mHttpClients.remove(0);
-        } else {
-            httpClient = HttpClients.createDefault();
-        }
+        countTry();
 
         HttpResponse response = null;
         HttpGet httpRequest = null;
         try {
             httpRequest = new HttpGet(mUri);
-            response = request(httpClient, httpRequest, false);
-            if (response != null && response.getStatusLine().getStatusCode() == 200) {
+            if (mRangeStart >= 0) {
+                httpRequest.setHeader(HttpHeaders.RANGE, "bytes=" + mRangeStart + "-");
+                httpRequest.setHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
+                if (mRangeValidator != null) {
+                    httpRequest.setHeader(HttpHeaders.IF_RANGE, mRangeValidator);
+                }
+            }
+            mRequest = httpRequest;
+            HttpCacheContext context = HttpCacheContext.create();
+            response = request(mHttpClient, httpRequest, context, true);
+            mCacheStatus = context.getCacheResponseStatus();
+            int status = response != null ? response.getStatusLine().getStatusCode() : 0;
+            if (status == 200 || (status == 206 && mRangeStart >= 0)) {
                 mListener.onHttpSuccess(this, response, httpRequest.getURI().getHost());
             } else {
                 mListener.onError(this, Listener.Error.HttpError);
@@ -100,34 +216,41 @@ public class HttpClientHelper implements Runnable {
             mListener.onError(this, Listener.Error.UnknowError);
             e.printStackTrace();
         } finally {
-            if (httpRequest != null) {
+            mRequest = null;
+            // a fully read entity hands the connection back to the pool, anything else must not be reused
+            if (!consumeResponse(response) && httpRequest != null) {
                 httpRequest.abort();
             }
-            consumeResponse(response);
-            mHttpClients.add(httpClient);
         }
     }
 
-    private void consumeResponse(HttpResponse response) {
+    private boolean consumeResponse(HttpResponse response) {
         if (response != null && response.getEntity() != null) {
             try {
                 EntityUtils.consume(response.getEntity());
             } catch (Exception e2) {
+                return false;
             }
         }
+        return response != null;
+    }
+
+    private HttpResponse request(CloseableHttpClient CloseableHttpClient, HttpGet httpRequest,
+            HttpCacheContext context, boolean keepAlive) throws IOException, URISyntaxException {
+        configure(httpRequest, keepAlive);
+        return CloseableHttpClient.execute(httpRequest, context);
     }
 
-    private HttpResponse request(CloseableHttpClient CloseableHttpClient, HttpGet httpRequest, boolean keepAlive)
-            throws IOException, URISyntaxException {
+    private static void configure(HttpGet httpRequest, boolean keepAlive) {
         Builder requestConfigBuilder = RequestConfig.custom();
-        requestConfigBuilder.setConnectionRequestTimeout(10000).setSocketTimeout(10000).setRedirectsEnabled(true)
-                .setMaxRedirects(1);
+        requestConfigBuilder.setConnectionRequestTimeout(TIMEOUT).setSocketTimeout(TIMEOUT).setRedirectsEnabled(true)
+                .setMaxRedirects(MAX_REDIRECTS);
         httpRequest.setConfig(requestConfigBuilder.build());
 
         httpRequest.setHeader("Accept-Charset", "utf-8");
         httpRequest.setHeader(HTTP.CONN_DIRECTIVE, keepAlive ? HTTP.CONN_KEEP_ALIVE : HTTP.CONN_CLOSE);
-        httpRequest.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
-
-        return CloseableHttpClient.execute(httpRequest);
+        if (!httpRequest.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            httpRequest.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        }
     }
 }
@@ -1,8 +1,10 @@
 package com.opera.traffic;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,13 +12,12 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.http.Header;
-import org.htmlparser.tags.LinkTag;
 
 import com.opera.traffic.Control.RoundCompleted;
 
 public class Launcher implements RoundCompleted {
 
-    static class DomainFilter implements Control.LinkFilter {
+    static class DomainFilter implements Control.LinkFilter, LinkFilterCompiler.Compilable, Filters.Costed {
         String mDomain;
 
         public DomainFilter(String domain) {
@@ -24,15 +25,35 @@ public class Launcher implements RoundCompleted {
         }
 
         @Override
-        public boolean isDesired(LinkTag lt) {
+        public boolean isDesired(LinkRecord lt) {
             if (lt.getLink().indexOf(mDomain) != -1) {
                 return true;
             }
             return false;
         }
+
+        @Override
+        public void compileInto(LinkFilterCompiler compiler) {
+            compiler.addSubstring(mDomain);
+        }
+
+        @Override
+        public int getCost() {
+            return Filters.CHEAP;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DomainFilter && ((DomainFilter) o).mDomain.equals(mDomain);
+        }
+
+        @Override
+        public int hashCode() {
+            return mDomain.hashCode();
+        }
     }
 
-    static class MimeFilter implements Control.DownloadFilter {
+    static class MimeFilter implements Control.DownloadFilter, Filters.Costed {
 
         private final String mMime;
 
@@ -49,9 +70,24 @@ public class Launcher implements RoundCompleted {
             }
             return false;
         }
+
+        @Override
+        public int getCost() {
+            return Filters.CHEAP;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MimeFilter && ((MimeFilter) o).mMime.equals(mMime);
+        }
+
+        @Override
+        public int hashCode() {
+            return mMime.hashCode();
+        }
     }
 
-    static class RegexFilter implements Control.LinkFilter {
+    static class RegexFilter implements Control.LinkFilter, LinkFilterCompiler.Compilable, Filters.Costed {
         Pattern mPattern;
 
         public RegexFilter(String regex) {
@@ -59,16 +95,36 @@ public class Launcher implements RoundCompleted {
         }
 
         @Override
-        public boolean isDesired(LinkTag lt) {
+        public boolean isDesired(LinkRecord lt) {
             Matcher matcher = mPattern.matcher(lt.getLink());
             if (matcher.lookingAt()) {
                 return true;
             }
             return false;
         }
+
+        @Override
+        public void compileInto(LinkFilterCompiler compiler) {
+            compiler.addRegex(mPattern.pattern());
+        }
+
+        @Override
+        public int getCost() {
+            return Filters.MEDIUM;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RegexFilter && ((RegexFilter) o).mPattern.pattern().equals(mPattern.pattern());
+        }
+
+        @Override
+        public int hashCode() {
+            return mPattern.pattern().hashCode();
+        }
     }
 
-    static class TitleFilter implements Control.LinkFilter {
+    static class TitleFilter implements Control.LinkFilter, Filters.Costed {
         Pattern mPattern;
 
         public TitleFilter(String regex) {
@@ -76,7 +132,7 @@ public class Launcher implements RoundCompleted {
         }
 
         @Override
-        public boolean isDesired(LinkTag lt) {
+        public boolean isDesired(LinkRecord lt) {
             if (lt.toHtml().trim().isEmpty()) {
                 return true;
             }
@@ -86,9 +142,25 @@ public class Launcher implements RoundCompleted {
             }
             return false;
         }
+
+        // renders the whole tag before the regex even starts
+        @Override
+        public int getCost() {
+            return Filters.EXPENSIVE;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TitleFilter && ((TitleFilter) o).mPattern.pattern().equals(mPattern.pattern());
+        }
+
+        @Override
+        public int hashCode() {
+            return mPattern.pattern().hashCode();
+        }
     }
 
-    static class WildcardFilter implements Control.LinkFilter {
+    static class WildcardFilter implements Control.LinkFilter, LinkFilterCompiler.Compilable, Filters.Costed {
         String mPattern;
 
         public WildcardFilter(String wc) {
@@ -96,10 +168,30 @@ public class Launcher implements RoundCompleted {
         }
 
         @Override
-        public boolean isDesired(LinkTag lt) {
+        public boolean isDesired(LinkRecord lt) {
             return match(lt.getLink());
         }
 
+        @Override
+        public void compileInto(LinkFilterCompiler compiler) {
+            compiler.addWildcard(mPattern);
+        }
+
+        @Override
+        public int getCost() {
+            return 2 * Filters.CHEAP;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WildcardFilter && ((WildcardFilter) o).mPattern.equals(mPattern);
+        }
+
+        @Override
+        public int hashCode() {
+            return mPattern.hashCode();
+        }
+
         private boolean match(String src) {
             if (src == null)
                 return false;
@@ -149,6 +241,10 @@ public class Launcher implements RoundCompleted {
                 i++;
             }
 
+            // stars left at the end of the pattern match the empty rest
+            while (i == src.length() && j < mPattern.length() && mPattern.charAt(j) == '*') {
+                j++;
+            }
             if (i == src.length() && j == mPattern.length()) {
                 result = true;
             }
@@ -156,6 +252,95 @@ public class Launcher implements RoundCompleted {
         }
     }
 
+    // Reads "domain:x", "wc:x", "title:x" and "/regex/" terms joined by not, and, or and parentheses, in that order of
+    // precedence, into one link filter.
+    static class FilterExpression {
+        private final List<String> mTokens = new ArrayList<String>();
+        private int mPosition;
+
+        public FilterExpression(String expression) {
+            for (String token : expression.trim().split("\\s+")) {
+                while (token.startsWith("(")) {
+                    mTokens.add("(");
+                    token = token.substring(1);
+                }
+                // a regex may hold parentheses of its own, only those after its closing slash are grouping
+                int floor = token.startsWith("/") ? Math.max(1, token.lastIndexOf('/') + 1) : 0;
+                int close = token.length();
+                while (close > floor && token.charAt(close - 1) == ')') {
+                    close--;
+                }
+                if (close > 0) {
+                    mTokens.add(token.substring(0, close));
+                }
+                for (int i = close; i < token.length(); i++) {
+                    mTokens.add(")");
+                }
+            }
+        }
+
+        public Control.LinkFilter parse() {
+            Control.LinkFilter filter = parseOr();
+            if (mPosition != mTokens.size()) {
+                throw new IllegalArgumentException("Unexpected " + mTokens.get(mPosition));
+            }
+            return filter;
+        }
+
+        private Control.LinkFilter parseOr() {
+            List<Control.LinkFilter> terms = new ArrayList<Control.LinkFilter>();
+            terms.add(parseAnd());
+            while (accept("or")) {
+                terms.add(parseAnd());
+            }
+            return Filters.anyLink(terms.toArray(new Control.LinkFilter[terms.size()]));
+        }
+
+        private Control.LinkFilter parseAnd() {
+            List<Control.LinkFilter> terms = new ArrayList<Control.LinkFilter>();
+            terms.add(parseNot());
+            while (accept("and")) {
+                terms.add(parseNot());
+            }
+            return Filters.allLinks(terms.toArray(new Control.LinkFilter[terms.size()]));
+        }
+
+        private Control.LinkFilter parseNot() {
+            if (accept("not")) {
+                return Filters.notLink(parseNot());
+            }
+            if (accept("(")) {
+                Control.LinkFilter filter = parseOr();
+                if (!accept(")")) {
+                    throw new IllegalArgumentException("Missing )");
+                }
+                return filter;
+            }
+            if (mPosition == mTokens.size()) {
+                throw new IllegalArgumentException("Missing term");
+            }
+            String term = mTokens.get(mPosition++);
+            if (term.length() > 1 && term.startsWith("/") && term.endsWith("/")) {
+                return new RegexFilter(".*" + term.substring(1, term.length() - 1));
+            } else if (term.startsWith("domain:")) {
+                return new DomainFilter(term.substring("domain:".length()));
+            } else if (term.startsWith("wc:")) {
+                return new WildcardFilter("*" + term.substring("wc:".length()) + "*");
+            } else if (term.startsWith("title:")) {
+                return new TitleFilter(term.substring("title:".length()));
+            }
+            throw new IllegalArgumentException("Unknown term " + term);
+        }
+
+        private boolean accept(String token) {
+            if (mPosition < mTokens.size() && mTokens.get(mPosition).equalsIgnoreCase(token)) {
+                mPosition++;
+                return true;
+            }
+            return false;
+        }
+    }
+
     private final static String ORIGIN_URL =
     //"http://xia2.kekenet.com/Sound/2016/07/ffmc1401_2854161Vv8.mp3";
     "http://www.kekenet.com/Article/16167/";
@@ -168,24 +353,91 @@ public class Launcher implements RoundCompleted {
         }
     };
 
-    private final Control mControl = new Control(this);
+    private final Control mControl;
+
+    public Launcher(Control.Engine engine) {
+        mControl = new Control(this, engine);
+    }
 
+    // [-nio | -virtual] [-store dir [-seen count[:rate]]] [-cache dir] [-linkcache dir] [link]
     public static void main(String[] args) {
-        Launcher launcher = new Launcher();
-        if (args != null && args.length >= 1) {
-            LinkTag lt = new LinkTag();
-            lt.setLink(args[0]);
-            launcher.mControl.addLink(lt);
+        Control.Engine engine = Control.Engine.THREADS;
+        String store = null;
+        String cache = null;
+        String linkCache = null;
+        SeenFilter seen = null;
+        String link = null;
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-nio")) {
+                    engine = Control.Engine.NIO;
+                } else if (arg.equals("-virtual")) {
+                    engine = Control.Engine.VIRTUAL;
+                } else if (arg.equals("-store") && i + 1 < args.length) {
+                    store = args[++i];
+                } else if (arg.equals("-cache") && i + 1 < args.length) {
+                    cache = args[++i];
+                } else if (arg.equals("-linkcache") && i + 1 < args.length) {
+                    linkCache = args[++i];
+                } else if (arg.equals("-seen") && i + 1 < args.length) {
+                    String[] size = args[++i].split(":");
+                    try {
+                        seen = new SeenFilter(Long.parseLong(size[0]),
+                                size.length > 1 ? Double.parseDouble(size[1]) : 0.01);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                        return;
+                    }
+                } else if (link == null) {
+                    link = arg;
+                }
+            }
+        }
+        if (seen != null && store == null) {
+            // the filter only stands in front of a store
+            System.out.println("-seen needs -store");
+            return;
+        }
+        Launcher launcher = new Launcher(engine);
+        if (store != null) {
+            try {
+                launcher.mControl.openStore(new File(store), seen);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        if (cache != null) {
+            try {
+                launcher.mControl.openCache(new File(cache));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        if (linkCache != null) {
+            try {
+                launcher.mControl.openLinkCache(new File(linkCache));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        if (link != null) {
+            launcher.mControl.addLink(new LinkRecord(link, null, LinkRecord.NO_REFERRER));
         }
         launcher.start();
     }
 
     @Override
     public void roundCompleted() {
-        List<LinkTag> list = mControl.getDesiredLinks();
-        for (LinkTag lt : list) {
-            System.out.println(lt.extractLink() + "\t" + lt.getChildrenHTML());
-        }
+        mControl.visitDesiredLinks(new Control.LinkVisitor() {
+            @Override
+            public void visit(LinkRecord lt) {
+                System.out.println(lt.getLink() + "\t" + (lt.getText() != null ? lt.getText() : ""));
+            }
+        });
         completeCommand();
     }
 
@@ -210,9 +462,11 @@ public class Launcher implements RoundCompleted {
             if (domains.length == 0) {
                 return false;
             }
+            List<Control.LinkFilter> filters = new ArrayList<Control.LinkFilter>();
             for (String s : domains) {
-                mControl.addFilter(new DomainFilter(s));
+                filters.add(new DomainFilter(s));
             }
+            mControl.addFilter(LinkFilterCompiler.compile(filters));
         }
         mControl.go();
         return true;
@@ -223,16 +477,48 @@ public class Launcher implements RoundCompleted {
         return false;
     }
 
+    private boolean filterCommand(String input) {
+        String arg = input.substring("filter".length()).trim();
+        if (arg.isEmpty()) {
+            return false;
+        }
+        try {
+            mControl.addFilter(new FilterExpression(arg).parse());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        mControl.go();
+        return true;
+    }
+
     private boolean goCommand(String input) {
         if (input.length() > "go".length()) {
-            LinkTag lt = new LinkTag();
-            lt.setLink(input.substring("go".length()).trim());
-            mControl.addLink(lt);
+            mControl.addLink(new LinkRecord(input.substring("go".length()).trim(), null, LinkRecord.NO_REFERRER));
         }
         mControl.go();
         return true;
     }
 
+    // host <concurrency> [delay_ms] [host=weight ...]
+    private boolean hostCommand(String input) {
+        String[] args = input.substring("host".length()).trim().split("\\s+");
+        try {
+            int concurrency = Integer.parseInt(args[0]);
+            long delay = args.length > 1 && args[1].indexOf('=') == -1 ? Long.parseLong(args[1]) : 0;
+            mControl.setHostPolicy(concurrency, delay);
+            for (String s : args) {
+                int i = s.indexOf('=');
+                if (i > 0) {
+                    mControl.setHostWeight(s.substring(0, i), Integer.parseInt(s.substring(i + 1)));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
     private boolean mimeCommand(String input) {
         if (input.length() > "mime".length()) {
             String arg = input.substring("mime".length()).trim();
@@ -258,16 +544,39 @@ public class Launcher implements RoundCompleted {
             return false;
         }
 
+        List<Control.LinkFilter> filters = new ArrayList<Control.LinkFilter>();
         for (String s : regexs) {
             if (s.startsWith("/") && s.endsWith("/")) {
                 s = ".*" + s.substring(1, s.length() - 1);
-                mControl.addFilter(new RegexFilter(s));
+                filters.add(new RegexFilter(s));
             }
         }
+        if (!filters.isEmpty()) {
+            mControl.addFilter(LinkFilterCompiler.compile(filters));
+        }
         mControl.go();
         return true;
     }
 
+    // sort on|off, whether the parameters of a found link are put in name order
+    private void sortCommand(String input) {
+        String arg = input.substring("sort".length()).trim();
+        if (arg.equals("on") || arg.equals("off")) {
+            mControl.getCanonicalizer().setSortQuery(arg.equals("on"));
+        }
+    }
+
+    // strip name [name], or strip none to keep every parameter
+    private void stripCommand(String input) {
+        for (String name : input.substring("strip".length()).trim().split("\\s+")) {
+            if (name.equals("none")) {
+                mControl.getCanonicalizer().clearStrippedParams();
+            } else if (!name.isEmpty()) {
+                mControl.getCanonicalizer().addStrippedParam(name);
+            }
+        }
+    }
+
     private boolean saveCommand(String input) {
         if (input.length() > "save".length()) {
             mControl.setPath(input.substring("save".length()).trim());
@@ -283,6 +592,11 @@ public class Launcher implements RoundCompleted {
             try {
                 String input = null;
                 input = br.readLine();
+                if (input == null) {
+                    // no more commands can come
+                    mControl.close();
+                    return;
+                }
                 input = input.trim();
                 if (input.startsWith("go")) {
                     goCommand(input);
@@ -310,6 +624,23 @@ public class Launcher implements RoundCompleted {
                     // download operation do not invoke a immediate go.
                     continue;
                 }
+                if (input.startsWith("filter")) {
+                    if (!filterCommand(input)) {
+                        continue;
+                    }
+                }
+                if (input.startsWith("strip")) {
+                    stripCommand(input);
+                    continue;
+                }
+                if (input.startsWith("sort")) {
+                    sortCommand(input);
+                    continue;
+                }
+                if (input.startsWith("host")) {
+                    hostCommand(input);
+                    continue;
+                }
                 if (input.startsWith("domain")) {
                     if (!domainCommand(input)) {
                         continue;
@@ -333,9 +664,11 @@ public class Launcher implements RoundCompleted {
             if (regexs.length == 0) {
                 return false;
             }
+            List<Control.LinkFilter> filters = new ArrayList<Control.LinkFilter>();
             for (String s : regexs) {
-                mControl.addFilter(new TitleFilter(s));
+                filters.add(new TitleFilter(s));
             }
+            mControl.addFilter(LinkFilterCompiler.compile(filters));
         }
         mControl.go();
         return true;
@@ -359,10 +692,12 @@ public class Launcher implements RoundCompleted {
                 return false;
             }
 
+            List<Control.LinkFilter> filters = new ArrayList<Control.LinkFilter>();
             for (String s : wcs) {
                 s = "*" + s + "*";
-                mControl.addFilter(new WildcardFilter(s));
+                filters.add(new WildcardFilter(s));
             }
+            mControl.addFilter(LinkFilterCompiler.compile(filters));
         }
         mControl.go();
         return true;
@@ -0,0 +1,327 @@
+package com.opera.traffic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The links found on a page, keyed by a digest of the page url and its body, so a page that comes back the same is
+// not lexed again. Links are absolute and resolved against the url, which is why it is part of the key. Entries are
+// kept in memory up to a byte budget and the least recently used go first, to files in a spill directory when there
+// is one, from where a later lookup brings them back. Spill files are read and written outside the lock, and the
+// oldest are deleted once they take more than their own budget.
+public class LinkCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // starts a spill file, one without it is from before links kept their html and is a miss
+    private static final int MAGIC = 0x4a444c32;
+    // rough cost of an entry and of a link besides their characters
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int LINK_OVERHEAD = 64;
+
+    private final long mMaxBytes;
+    private final File mSpill;
+    private final long mMaxSpillBytes;
+    private final LinkedHashMap<String, List<LinkScanner.Link>> mEntries =
+            new LinkedHashMap<String, List<LinkScanner.Link>>(16, 0.75f, true);
+    // the size of each spill file, oldest first
+    private final LinkedHashMap<String, Long> mSpilled = new LinkedHashMap<String, Long>();
+    private long mBytes;
+    private long mSpillBytes;
+    private long mHits;
+    private long mMisses;
+
+    // Evicted entries are dropped.
+    public LinkCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+        mSpill = null;
+        mMaxSpillBytes = 0;
+    }
+
+    // Files left in spill by an earlier run are kept, the oldest go first.
+    public LinkCache(long maxBytes, File spill, long maxSpillBytes) throws IOException {
+        if (!spill.isDirectory() && !spill.mkdirs()) {
+            throw new IOException("Cannot create " + spill);
+        }
+        mMaxBytes = maxBytes;
+        mSpill = spill;
+        mMaxSpillBytes = maxSpillBytes;
+        File[] files = spill.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    // a write that did not finish
+                    file.delete();
+                } else {
+                    mSpilled.put(file.getName(), file.length());
+                    mSpillBytes += file.length();
+                }
+            }
+        }
+        delete(trimSpill());
+    }
+
+    // The key of a page, body is read up to length.
+    public static String digest(String url, byte[] body, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(url.getBytes(UTF_8));
+            md.update((byte) 0);
+            md.update(body, 0, length);
+            byte[] digest = md.digest();
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+        mSpilled.clear();
+        mSpillBytes = 0;
+        if (mSpill != null) {
+            File[] files = mSpill.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    // Spills what is in memory, so the next run starts with it.
+    public void close() {
+        List<Map.Entry<String, List<LinkScanner.Link>>> entries;
+        synchronized (this) {
+            entries = new ArrayList<Map.Entry<String, List<LinkScanner.Link>>>(mEntries.entrySet());
+            mEntries.clear();
+            mBytes = 0;
+        }
+        spill(entries);
+    }
+
+    // Returns the links stored for key, or null.
+    public List<LinkScanner.Link> get(String key) {
+        synchronized (this) {
+            List<LinkScanner.Link> links = mEntries.get(key);
+            if (links != null) {
+                mHits++;
+                return links;
+            }
+            Long size = mSpilled.remove(key);
+            if (size == null) {
+                mMisses++;
+                return null;
+            }
+            mSpillBytes -= size;
+        }
+        List<LinkScanner.Link> links = read(new File(mSpill, key));
+        List<Map.Entry<String, List<LinkScanner.Link>>> evicted = null;
+        synchronized (this) {
+            if (links != null) {
+                mHits++;
+                if (!mEntries.containsKey(key)) {
+                    evicted = store(key, links);
+                }
+            } else {
+                mMisses++;
+            }
+        }
+        spill(evicted);
+        return links;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public void put(String key, List<LinkScanner.Link> links) {
+        List<Map.Entry<String, List<LinkScanner.Link>>> evicted = null;
+        synchronized (this) {
+            if (!mEntries.containsKey(key)) {
+                evicted = store(key, links);
+            }
+        }
+        spill(evicted);
+    }
+
+    private static long cost(String key, List<LinkScanner.Link> links) {
+        long bytes = ENTRY_OVERHEAD + key.length() * 2;
+        for (LinkScanner.Link link : links) {
+            bytes += LINK_OVERHEAD + (link.getTag().length() + link.getUrl().length()) * 2;
+            if (link.getText() != null) {
+                bytes += link.getText().length() * 2;
+            }
+            if (link.getHtml() != null) {
+                bytes += link.getHtml().length() * 2;
+            }
+        }
+        return bytes;
+    }
+
+    // A missing or unreadable file is a miss, the file is taken back into memory.
+    private static List<LinkScanner.Link> read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            int count = in.readInt();
+            List<LinkScanner.Link> links = new ArrayList<LinkScanner.Link>(count);
+            for (int i = 0; i < count; i++) {
+                links.add(new LinkScanner.Link(readString(in), readString(in), readString(in), readString(in)));
+            }
+            return links;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    // Returns the entries pushed out to make room, for spill to write once the lock is let go.
+    private List<Map.Entry<String, List<LinkScanner.Link>>> store(String key, List<LinkScanner.Link> links) {
+        List<Map.Entry<String, List<LinkScanner.Link>>> evicted = null;
+        mEntries.put(key, links);
+        mBytes += cost(key, links);
+        Iterator<Map.Entry<String, List<LinkScanner.Link>>> it = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, List<LinkScanner.Link>> eldest = it.next();
+            it.remove();
+            mBytes -= cost(eldest.getKey(), eldest.getValue());
+            if (mSpill != null) {
+                if (evicted == null) {
+                    evicted = new ArrayList<Map.Entry<String, List<LinkScanner.Link>>>();
+                }
+                evicted.add(new AbstractMap.SimpleImmutableEntry<String, List<LinkScanner.Link>>(eldest));
+            }
+        }
+        return evicted;
+    }
+
+    // Writes entries to the spill directory, then deletes the oldest files while they are over budget. Not called
+    // with the lock held, a lookup of an entry still being written is a miss.
+    private void spill(List<Map.Entry<String, List<LinkScanner.Link>>> entries) {
+        if (entries == null || mSpill == null) {
+            return;
+        }
+        for (Map.Entry<String, List<LinkScanner.Link>> entry : entries) {
+            long size = write(new File(mSpill, entry.getKey()), entry.getValue());
+            if (size < 0) {
+                continue;
+            }
+            List<String> old;
+            synchronized (this) {
+                Long replaced = mSpilled.put(entry.getKey(), size);
+                mSpillBytes += size - (replaced != null ? replaced : 0);
+                old = trimSpill();
+            }
+            delete(old);
+        }
+    }
+
+    // Drops the oldest spill files from the record until the rest fit, and returns their names.
+    private List<String> trimSpill() {
+        List<String> old = null;
+        Iterator<Map.Entry<String, Long>> it = mSpilled.entrySet().iterator();
+        while (mSpillBytes > mMaxSpillBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            mSpillBytes -= eldest.getValue();
+            if (old == null) {
+                old = new ArrayList<String>();
+            }
+            old.add(eldest.getKey());
+        }
+        return old;
+    }
+
+    private void delete(List<String> names) {
+        if (names != null) {
+            for (String name : names) {
+                new File(mSpill, name).delete();
+            }
+        }
+    }
+
+    // Returns the size of the file, or -1 if it could not be written.
+    private static long write(File file, List<LinkScanner.Link> links) {
+        File tmp = null;
+        try {
+            // a name of its own, two threads may spill the same key
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(links.size());
+                for (LinkScanner.Link link : links) {
+                    writeString(out, link.getTag());
+                    writeString(out, link.getUrl());
+                    writeString(out, link.getText());
+                    writeString(out, link.getHtml());
+                }
+            }
+            long size = tmp.length();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return size;
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return -1;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,473 @@
+package com.opera.traffic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// Folds a set of link filters into one matcher that reads each url once: substring terms go into an Aho-Corasick
+// automaton, wildcard terms into one lazily built DFA and regular expressions into a single alternation. Filters
+// that are none of these are kept and tried after the compiled part. A link is desired when any term matches.
+public class LinkFilterCompiler {
+    // A filter that can hand its term to the compiler instead of being run on its own.
+    public interface Compilable {
+        public void compileInto(LinkFilterCompiler compiler);
+    }
+
+    private static final class CompiledFilter implements Control.LinkFilter, Compilable, Filters.Costed {
+        private final LinkFilterCompiler mTerms;
+        private final SubstringAutomaton mSubstrings;
+        private final WildcardAutomaton mWildcards;
+        private final Pattern mRegex;
+        private final List<Pattern> mRegexes;
+        private final List<Control.LinkFilter> mOthers;
+
+        private CompiledFilter(LinkFilterCompiler terms, SubstringAutomaton substrings, WildcardAutomaton wildcards,
+                Pattern regex, List<Pattern> regexes) {
+            mTerms = terms;
+            mSubstrings = substrings;
+            mWildcards = wildcards;
+            mRegex = regex;
+            mRegexes = regexes;
+            mOthers = terms.mOthers;
+        }
+
+        // the terms go on to a bigger compiled filter
+        @Override
+        public void compileInto(LinkFilterCompiler compiler) {
+            compiler.mSubstrings.addAll(mTerms.mSubstrings);
+            compiler.mWildcards.addAll(mTerms.mWildcards);
+            compiler.mRegexes.addAll(mTerms.mRegexes);
+            compiler.mOthers.addAll(mTerms.mOthers);
+        }
+
+        @Override
+        public int getCost() {
+            int cost = mSubstrings != null ? Filters.CHEAP : 0;
+            cost += mWildcards != null ? 2 * Filters.CHEAP : 0;
+            cost += mRegex != null || !mRegexes.isEmpty() ? Filters.MEDIUM : 0;
+            for (Control.LinkFilter filter : mOthers) {
+                cost += Filters.costOf(filter);
+            }
+            return Math.max(Filters.CHEAP, cost);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CompiledFilter)) {
+                return false;
+            }
+            LinkFilterCompiler other = ((CompiledFilter) o).mTerms;
+            return mTerms.mSubstrings.equals(other.mSubstrings) && mTerms.mWildcards.equals(other.mWildcards)
+                    && mTerms.mRegexes.equals(other.mRegexes) && mTerms.mOthers.equals(other.mOthers);
+        }
+
+        @Override
+        public int hashCode() {
+            return mTerms.mSubstrings.hashCode() ^ mTerms.mWildcards.hashCode() ^ mTerms.mRegexes.hashCode()
+                    ^ mTerms.mOthers.hashCode();
+        }
+
+        @Override
+        public boolean isDesired(LinkRecord lt) {
+            String url = lt.getLink();
+            if (mSubstrings != null && mSubstrings.find(url)) {
+                return true;
+            }
+            if (mWildcards != null && mWildcards.matches(url)) {
+                return true;
+            }
+            if (mRegex != null && mRegex.matcher(url).lookingAt()) {
+                return true;
+            }
+            for (Pattern regex : mRegexes) {
+                if (regex.matcher(url).lookingAt()) {
+                    return true;
+                }
+            }
+            for (Control.LinkFilter filter : mOthers) {
+                if (filter.isDesired(lt)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Maps the characters that occur in the terms to small column numbers, every other character shares column 0.
+    private static final class Alphabet {
+        private final int[] mAscii = new int[128];
+        private final Map<Character, Integer> mOthers = new HashMap<Character, Integer>();
+        private int mSize = 1;
+
+        private void add(char c) {
+            if (classOf(c) == 0) {
+                if (c < 128) {
+                    mAscii[c] = mSize++;
+                } else {
+                    mOthers.put(c, mSize++);
+                }
+            }
+        }
+
+        private int classOf(char c) {
+            if (c < 128) {
+                return mAscii[c];
+            }
+            Integer i = mOthers.get(c);
+            return i == null ? 0 : i;
+        }
+    }
+
+    // Aho-Corasick with the failure links folded into a full transition table, one lookup per character.
+    private static final class SubstringAutomaton {
+        private final Alphabet mAlphabet = new Alphabet();
+        private final int[] mNext;
+        private final boolean[] mOutput;
+
+        private SubstringAutomaton(List<String> terms) {
+            int nodes = 1;
+            for (String term : terms) {
+                nodes += term.length();
+                for (int i = 0; i < term.length(); i++) {
+                    mAlphabet.add(term.charAt(i));
+                }
+            }
+            int width = mAlphabet.mSize;
+            int[] trie = new int[nodes * width];
+            boolean[] output = new boolean[nodes];
+            int count = 1;
+            for (String term : terms) {
+                int node = 0;
+                for (int i = 0; i < term.length(); i++) {
+                    int c = mAlphabet.classOf(term.charAt(i));
+                    if (trie[node * width + c] == 0) {
+                        trie[node * width + c] = count++;
+                    }
+                    node = trie[node * width + c];
+                }
+                output[node] = true;
+            }
+            int[] fail = new int[count];
+            ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+            for (int c = 0; c < width; c++) {
+                if (trie[c] != 0) {
+                    queue.add(trie[c]);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                output[node] |= output[fail[node]];
+                for (int c = 0; c < width; c++) {
+                    int child = trie[node * width + c];
+                    if (child != 0) {
+                        fail[child] = trie[fail[node] * width + c];
+                        queue.add(child);
+                    } else {
+                        trie[node * width + c] = trie[fail[node] * width + c];
+                    }
+                }
+            }
+            mNext = trie;
+            mOutput = output;
+        }
+
+        private boolean find(String text) {
+            if (mOutput[0]) {
+                return true; // an empty term
+            }
+            int width = mAlphabet.mSize;
+            int node = 0;
+            for (int i = 0; i < text.length(); i++) {
+                node = mNext[node * width + mAlphabet.classOf(text.charAt(i))];
+                if (mOutput[node]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // The wildcards of WildcardFilter, '*' for any run and '?' for any one character, matched against the whole url.
+    // NFA positions are the places inside the terms, DFA states are sets of them. The reachable DFA is built up front
+    // and only read after, so threads match without a lock. Terms that would take more than MAX_STATES states are
+    // matched by running the NFA on each url instead.
+    private static final class WildcardAutomaton {
+        private static final int MAX_STATES = 4096;
+
+        private final Alphabet mAlphabet = new Alphabet();
+        private final char[] mPattern;
+        private final boolean[] mEnd;
+        private final char[] mSample;
+        private final BitSet mStart = new BitSet();
+        // indexed by state * alphabet size + column, null when the DFA got too big
+        private final int[] mNext;
+        private final boolean[] mAccept;
+        private final boolean[] mSticky;
+        private final boolean[] mDead;
+
+        private WildcardAutomaton(List<String> terms) {
+            StringBuilder pattern = new StringBuilder();
+            List<Integer> ends = new ArrayList<Integer>();
+            for (String term : terms) {
+                int start = pattern.length();
+                pattern.append(term).append('\0');
+                ends.add(pattern.length() - 1);
+                mStart.set(start);
+                for (int i = 0; i < term.length(); i++) {
+                    char c = term.charAt(i);
+                    if (c != '*' && c != '?') {
+                        mAlphabet.add(c);
+                    }
+                }
+            }
+            mPattern = pattern.toString().toCharArray();
+            mEnd = new boolean[mPattern.length];
+            for (int end : ends) {
+                mEnd[end] = true;
+            }
+            // one character of each column, for working out where a column leads
+            mSample = new char[mAlphabet.mSize];
+            for (int c = 0; c < 128; c++) {
+                if (mAlphabet.mAscii[c] != 0) {
+                    mSample[mAlphabet.mAscii[c]] = (char) c;
+                }
+            }
+            for (Map.Entry<Character, Integer> entry : mAlphabet.mOthers.entrySet()) {
+                mSample[entry.getValue()] = entry.getKey();
+            }
+            mSample[0] = findUnused();
+            closure(mStart);
+
+            int width = mAlphabet.mSize;
+            Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+            List<BitSet> states = new ArrayList<BitSet>();
+            ids.put(mStart, 0);
+            states.add(mStart);
+            int[] next = new int[width * 16];
+            for (int state = 0; state < states.size() && states.size() <= MAX_STATES; state++) {
+                if (next.length < (state + 1) * width) {
+                    next = Arrays.copyOf(next, next.length * 2);
+                }
+                BitSet from = states.get(state);
+                for (int c = 0; c < width; c++) {
+                    BitSet to = from.isEmpty() ? from : step(from, mSample[c]);
+                    Integer id = ids.get(to);
+                    if (id == null) {
+                        id = states.size();
+                        ids.put(to, id);
+                        states.add(to);
+                    }
+                    next[state * width + c] = id;
+                }
+            }
+            if (states.size() > MAX_STATES) {
+                mNext = null;
+                mAccept = null;
+                mSticky = null;
+                mDead = null;
+                return;
+            }
+            mNext = Arrays.copyOf(next, states.size() * width);
+            mAccept = new boolean[states.size()];
+            mSticky = new boolean[states.size()];
+            mDead = new boolean[states.size()];
+            for (int state = 0; state < states.size(); state++) {
+                BitSet set = states.get(state);
+                mAccept[state] = isAccepting(set);
+                mSticky[state] = isSticky(set);
+                mDead[state] = set.isEmpty();
+            }
+        }
+
+        private boolean matches(String text) {
+            if (mNext == null) {
+                return simulate(text);
+            }
+            int width = mAlphabet.mSize;
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (mSticky[state]) {
+                    return true;
+                }
+                state = mNext[state * width + mAlphabet.classOf(text.charAt(i))];
+                if (mDead[state]) {
+                    return false;
+                }
+            }
+            return mAccept[state];
+        }
+
+        // the NFA itself, for terms whose DFA would be too big
+        private boolean simulate(String text) {
+            BitSet set = (BitSet) mStart.clone();
+            for (int i = 0; i < text.length(); i++) {
+                if (isSticky(set)) {
+                    return true;
+                }
+                set = step(set, text.charAt(i));
+                if (set.isEmpty()) {
+                    return false;
+                }
+            }
+            return isAccepting(set);
+        }
+
+        private BitSet step(BitSet from, char c) {
+            BitSet to = new BitSet(mPattern.length);
+            for (int i = from.nextSetBit(0); i >= 0; i = from.nextSetBit(i + 1)) {
+                char p = mPattern[i];
+                if (p == '*') {
+                    to.set(i);
+                } else if (!mEnd[i] && (p == '?' || p == c)) {
+                    to.set(i + 1);
+                }
+            }
+            closure(to);
+            return to;
+        }
+
+        // a star may also match nothing
+        private void closure(BitSet set) {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                if (mPattern[i] == '*') {
+                    set.set(i + 1);
+                }
+            }
+        }
+
+        private boolean isAccepting(BitSet set) {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                if (mEnd[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isSticky(BitSet set) {
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                if (mPattern[i] == '*' && onlyStarsFrom(i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // from a star followed only by stars, every rest of the url matches
+        private boolean onlyStarsFrom(int i) {
+            while (!mEnd[i]) {
+                if (mPattern[i++] != '*') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private char findUnused() {
+            for (char c = 1; c < Character.MAX_VALUE; c++) {
+                if (mAlphabet.classOf(c) == 0 && c != '*' && c != '?') {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private final List<String> mSubstrings = new ArrayList<String>();
+    private final List<String> mWildcards = new ArrayList<String>();
+    private final List<String> mRegexes = new ArrayList<String>();
+    private final List<Control.LinkFilter> mOthers = new ArrayList<Control.LinkFilter>();
+
+    public static Control.LinkFilter compile(List<? extends Control.LinkFilter> filters) {
+        LinkFilterCompiler compiler = new LinkFilterCompiler();
+        for (Control.LinkFilter filter : filters) {
+            compiler.add(filter);
+        }
+        return compiler.compile();
+    }
+
+    public void add(Control.LinkFilter filter) {
+        if (filter instanceof Compilable) {
+            ((Compilable) filter).compileInto(this);
+        } else {
+            mOthers.add(filter);
+        }
+    }
+
+    public void addSubstring(String term) {
+        mSubstrings.add(term);
+    }
+
+    public void addWildcard(String term) {
+        mWildcards.add(term);
+    }
+
+    // matched with lookingAt, as RegexFilter does
+    public void addRegex(String regex) {
+        mRegexes.add(regex);
+    }
+
+    public Control.LinkFilter compile() {
+        Pattern regex = null;
+        List<Pattern> regexes = new ArrayList<Pattern>();
+        StringBuilder alternation = new StringBuilder();
+        int joined = 0;
+        for (String r : mRegexes) {
+            // a back reference counts groups from the start of its own pattern, joined they would be renumbered
+            if (hasBackReference(r)) {
+                regexes.add(Pattern.compile(r));
+                continue;
+            }
+            if (joined++ > 0) {
+                alternation.append('|');
+            }
+            alternation.append("(?:").append(r).append(')');
+        }
+        if (joined > 0) {
+            try {
+                regex = Pattern.compile(alternation.toString());
+            } catch (PatternSyntaxException e) {
+                // two terms name a group alike, so each is matched on its own
+                for (String r : mRegexes) {
+                    if (!hasBackReference(r)) {
+                        regexes.add(Pattern.compile(r));
+                    }
+                }
+            }
+        }
+        // the compiled filter keeps a copy of the terms, this compiler may still be added to
+        LinkFilterCompiler terms = new LinkFilterCompiler();
+        terms.mSubstrings.addAll(mSubstrings);
+        terms.mWildcards.addAll(mWildcards);
+        terms.mRegexes.addAll(mRegexes);
+        terms.mOthers.addAll(mOthers);
+        return new CompiledFilter(terms, mSubstrings.isEmpty() ? null : new SubstringAutomaton(mSubstrings),
+                mWildcards.isEmpty() ? null : new WildcardAutomaton(mWildcards), regex, regexes);
+    }
+
+    // true when regex refers to one of its groups, by number or by name, outside of \Q...\E
+    private static boolean hasBackReference(String regex) {
+        for (int i = 0; i + 1 < regex.length(); i++) {
+            if (regex.charAt(i) != '\\') {
+                continue;
+            }
+            char c = regex.charAt(++i);
+            if (c == 'Q') {
+                int end = regex.indexOf("\\E", i);
+                if (end == -1) {
+                    return false;
+                }
+                i = end + 1;
+            } else if ((c >= '1' && c <= '9') || (c == 'k' && regex.startsWith("<", i + 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+package com.opera.traffic;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// A link found by the crawl, kept instead of a LinkTag. A LinkTag holds its Page and with it the whole source of the
+// page it came from; a record holds the scheme and host of the url, shared with every link of that origin together
+// with the host name the scheduler queues it by, the rest of the url as UTF-8 bytes, the anchor text, the html of
+// the tag alone as UTF-8 bytes and the id of the page that referred to it. The pool then grows with the number of
+// links, not with the pages they were found in.
+public final class LinkRecord {
+    public static final int NO_REFERRER = -1;
+
+    // the scheme and host of a url, one for each seen
+    private static final class Origin {
+        private final String mUrl;
+        private final String mHost;
+
+        private Origin(String url) {
+            mUrl = url;
+            mHost = HostScheduler.hostOf(url);
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ConcurrentMap<String, Origin> sOrigins = new ConcurrentHashMap<String, Origin>();
+
+    private final Origin mOrigin;
+    private final byte[] mPath;
+    private final String mText;
+    private final byte[] mHtml;
+    private final int mReferrer;
+
+    public LinkRecord(String url, String text, int referrer) {
+        this(url, text, null, referrer);
+    }
+
+    public LinkRecord(String url, String text, String html, int referrer) {
+        int start = url.indexOf("://");
+        int end = start == -1 ? 0 : start + 3;
+        while (start != -1 && end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        String origin = url.substring(0, end);
+        Origin shared = sOrigins.get(origin);
+        if (shared == null) {
+            Origin created = new Origin(origin);
+            shared = sOrigins.putIfAbsent(origin, created);
+            shared = shared != null ? shared : created;
+        }
+        mOrigin = shared;
+        mPath = url.substring(end).getBytes(UTF_8);
+        mText = text;
+        mHtml = html != null ? html.getBytes(UTF_8) : null;
+        mReferrer = referrer;
+    }
+
+    public String getHost() {
+        return mOrigin.mHost;
+    }
+
+    // made up again on every call, records do not keep the whole url
+    public String getLink() {
+        return mPath.length == 0 ? mOrigin.mUrl : mOrigin.mUrl + new String(mPath, UTF_8);
+    }
+
+    // the id Frontier gave the page the link was found on, or NO_REFERRER
+    public int getReferrer() {
+        return mReferrer;
+    }
+
+    // the anchor text, or null
+    public String getText() {
+        return mText;
+    }
+
+    // the raw html of the tag the link was found in, or null for a link that was not found on a page
+    public String getHtml() {
+        return mHtml != null ? new String(mHtml, UTF_8) : null;
+    }
+
+    // The html the link was found as, or for a link given by hand an anchor with the href in double quotes.
+    public String toHtml() {
+        if (mHtml != null) {
+            return getHtml();
+        }
+        String link = getLink();
+        char quote = link.indexOf('"') == -1 ? '"' : '\'';
+        return "<A HREF=" + quote + link + quote + ">" + (mText != null ? mText : "") + "</A>";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LinkRecord)) {
+            return false;
+        }
+        LinkRecord other = (LinkRecord) o;
+        // origins are shared, one instance each
+        return mOrigin == other.mOrigin && Arrays.equals(mPath, other.mPath);
+    }
+
+    @Override
+    public int hashCode() {
+        return mOrigin.mUrl.hashCode() * 31 + Arrays.hashCode(mPath);
+    }
+
+    @Override
+    public String toString() {
+        return getLink();
+    }
+}
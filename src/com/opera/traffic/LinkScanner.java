@@ -0,0 +1,204 @@
+package com.opera.traffic;
+
+import java.util.Vector;
+
+import org.htmlparser.Remark;
+import org.htmlparser.TableNodeFactory;
+import org.htmlparser.Tag;
+import org.htmlparser.Text;
+import org.htmlparser.lexer.AttributeTable;
+import org.htmlparser.lexer.Lexer;
+import org.htmlparser.lexer.Page;
+import org.htmlparser.nodes.RemarkNode;
+import org.htmlparser.nodes.TagNode;
+import org.htmlparser.nodes.TextNode;
+import org.htmlparser.util.ParserException;
+
+// Pulls links out of a page with the bare lexer. The scanner is its own node factory and hands back shared
+// placeholder nodes, so no TagNode, CompositeTag or child list is ever built, and it takes the attributes of a tag as
+// the lexer's table of positions, so no attribute object is either. Links are made absolute against the page url, or
+// against the first <base href> once the scanner has passed it. Each link keeps the html it was found as, for an
+// anchor from its start tag up to the tag that ends it, so the title filter still sees every attribute.
+public class LinkScanner implements TableNodeFactory {
+    public static final class Link {
+        private final String mTag;
+        private final String mUrl;
+        private final String mText;
+        private final String mHtml;
+
+        public Link(String tag, String url, String text, String html) {
+            mTag = tag;
+            mUrl = url;
+            mText = text;
+            mHtml = html;
+        }
+
+        // the raw html of the tag, or null
+        public String getHtml() {
+            return mHtml;
+        }
+
+        public String getTag() {
+            return mTag;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+    }
+
+    // Tag names are the interned symbols of the lexer, so they are compared by identity with these literals.
+    private static final String[] LINK_NAMES = { "A", "AREA", "FRAME", "IFRAME", "IMG", "LINK" };
+    private static final String[] LINK_TAGS = { "a", "area", "frame", "iframe", "img", "link" };
+    private static final String[] LINK_ATTRIBUTES = { "href", "href", "src", "src", "src", "href" };
+    private static final String[] CDATA_TAGS = { "SCRIPT", "STYLE" };
+    // the same tags that end a LinkTag in the node tree
+    private static final String[] ANCHOR_ENDERS = { "A", "P", "DIV", "TD", "TR", "FORM", "LI" };
+    private static final String[] ANCHOR_END_TAG_ENDERS = { "A", "P", "DIV", "TD", "TR", "FORM", "LI", "BODY",
+            "HTML" };
+    private static final int ANCHOR = 0;
+
+    private final Lexer mLexer;
+    private final Text mText = new TextNode(null, 0, 0);
+    private final Remark mRemark = new RemarkNode(null, 0, 0);
+    private final Tag mTag = new TagNode(null, 0, 0, (Vector) null);
+    private Link mNext;
+    private String mAnchorUrl;
+    private int mAnchorTag;
+    private int mAnchorStart;
+    private boolean mCdata;
+
+    public LinkScanner(Page page) {
+        mLexer = new Lexer(page);
+        mLexer.setNodeFactory(this);
+    }
+
+    // Starts over on another page, keeping the lexer.
+    public void reset(Page page) {
+        mLexer.reset(page);
+        mNext = null;
+        mAnchorUrl = null;
+        mCdata = false;
+    }
+
+    public Page getPage() {
+        return mLexer.getPage();
+    }
+
+    public Link nextLink() throws ParserException {
+        Link link = null;
+        while (link == null) {
+            if (mCdata) {
+                mCdata = false;
+                mLexer.parseCDATA();
+            }
+            if (mLexer.nextNode() == null) {
+                link = closeAnchor(mLexer.getPosition(), mLexer.getPosition());
+                break;
+            }
+            link = mNext;
+            mNext = null;
+        }
+        return link;
+    }
+
+    @Override
+    public Text createStringNode(Page page, int start, int end) {
+        return mText;
+    }
+
+    @Override
+    public Remark createRemarkNode(Page page, int start, int end) {
+        return mRemark;
+    }
+
+    @Override
+    public Tag createTagNode(Page page, int start, int end, AttributeTable attributes) {
+        String name = attributes.getTagName();
+        if (name == null) {
+            return mTag;
+        }
+        if (attributes.isEndTag()) {
+            if (mAnchorUrl != null && indexOf(ANCHOR_END_TAG_ENDERS, name) != -1) {
+                // </a> itself belongs to the html of the anchor
+                mNext = closeAnchor(start, name == "A" ? end : start);
+            }
+            return mTag;
+        }
+        if (mAnchorUrl != null && indexOf(ANCHOR_ENDERS, name) != -1) {
+            mNext = closeAnchor(start, start);
+        }
+        int index = indexOf(LINK_NAMES, name);
+        if (index == ANCHOR) {
+            mAnchorUrl = getUrl(page, attributes, LINK_ATTRIBUTES[index]);
+            mAnchorTag = start;
+            mAnchorStart = end;
+        } else if (index != -1) {
+            String url = getUrl(page, attributes, LINK_ATTRIBUTES[index]);
+            if (url != null) {
+                mNext = new Link(LINK_TAGS[index], url, null, page.getText(start, end));
+            }
+        } else if (indexOf(CDATA_TAGS, name) != -1) {
+            mCdata = true;
+        } else if (page.getBaseUrl() == null && name == "BASE") {
+            String base = getUrl(page, attributes, "href");
+            if (base != null) {
+                page.setBaseUrl(base);
+            }
+        }
+        return mTag;
+    }
+
+    // Only <% and <? markup comes as a vector, and it holds no links.
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Tag createTagNode(Page page, int start, int end, Vector attributes) {
+        return mTag;
+    }
+
+    // The text of the anchor ends at end, its html at htmlEnd.
+    private Link closeAnchor(int end, int htmlEnd) {
+        Link link = null;
+        if (mAnchorUrl != null) {
+            Page page = mLexer.getPage();
+            link = new Link(LINK_TAGS[ANCHOR], mAnchorUrl, page.getText(mAnchorStart, end),
+                    page.getText(mAnchorTag, htmlEnd));
+            mAnchorUrl = null;
+        }
+        return link;
+    }
+
+    private static String getUrl(Page page, AttributeTable attributes, String key) {
+        int i = attributes.indexOf(key, 1);
+        if (i == -1) {
+            return null;
+        }
+        String value = attributes.getValue(i);
+        if (value == null) {
+            return null;
+        }
+        value = value.replace("\r", "").replace("\n", "").trim();
+        if (value.isEmpty()) {
+            return null;
+        }
+        // an absolute http link needs no URL objects, the canonicalizer sees to the rest
+        if (value.regionMatches(true, 0, "http://", 0, 7) || value.regionMatches(true, 0, "https://", 0, 8)) {
+            return value;
+        }
+        return page.getAbsoluteURL(value);
+    }
+
+    // the index in names of the tag name symbol
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == name) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,739 @@
+package com.opera.traffic;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ParseException;
+import org.apache.http.StatusLine;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicLineParser;
+import org.apache.http.message.ParserCursor;
+import org.apache.http.util.ByteArrayBuffer;
+import org.apache.http.util.CharArrayBuffer;
+import org.apache.http.util.VersionInfo;
+
+// Fetches plain http links on a few selector threads instead of parking one thread on every request. A response is
+// read into memory and handed to the listener on a small worker pool. https links and bodies too big to buffer, alone
+// or with all the others in flight, are run by the blocking HttpClientHelper instead.
+public class NioFetcher {
+    private static final int MAX_HEAD = 64 * 1024;
+    private static final int MAX_BODY = 8 * 1024 * 1024;
+    // the bodies of all exchanges together, held until the listener is done with them
+    private static final long MAX_BUFFERED = 128L * 1024 * 1024;
+    private static final int RESOLVER_THREADS = 8;
+    private static final int MAX_IDLE_PER_ROUTE = 8;
+    private static final long IDLE_MILLIS = 30000;
+    // how long shutdown waits for a selector thread to close its connections
+    private static final long SHUTDOWN_WAIT = 5000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String USER_AGENT = VersionInfo.getUserAgent("Apache-HttpClient", "org.apache.http.client",
+            HttpClientBuilder.class);
+
+    private static final int NONE = 0;
+    private static final int LENGTH = 1;
+    private static final int CLOSE = 2;
+    private static final int CHUNK_SIZE = 3;
+    private static final int CHUNK_DATA = 4;
+    private static final int CHUNK_END = 5;
+    private static final int TRAILER = 6;
+
+    private final class Exchange {
+        private final HttpClientHelper mClient;
+        private final URI mUri;
+        private final InetSocketAddress mAddress;
+        private final String mRoute;
+        private final int mRedirects;
+        private final ByteBuffer mRequest;
+        private final ByteArrayBuffer mHead = new ByteArrayBuffer(1024);
+        private final ByteArrayBuffer mLine = new ByteArrayBuffer(16);
+        private final ByteArrayBuffer mBody = new ByteArrayBuffer(8192);
+        private final List<Header> mHeaders = new ArrayList<Header>();
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private StatusLine mStatusLine;
+        private int mFraming;
+        private long mRemaining;
+        private long mDeadline;
+        private boolean mConnected;
+        private boolean mReused;
+        private boolean mReceived;
+        private boolean mKeepAlive;
+        private boolean mTooLarge;
+        private boolean mLineComplete;
+        // bytes of MAX_BUFFERED this exchange has taken
+        private long mHeld;
+
+        private Exchange(HttpClientHelper client, URI uri, InetSocketAddress address, int redirects) {
+            mClient = client;
+            mUri = uri;
+            mAddress = address;
+            mRoute = address.getHostName() + ":" + address.getPort();
+            mRedirects = redirects;
+            mRequest = ByteBuffer.wrap(requestHead(uri, address.getPort()).getBytes(ASCII));
+        }
+
+        private Exchange retry() {
+            return new Exchange(mClient, mUri, mAddress, mRedirects);
+        }
+
+        // Returns true once the whole response is in.
+        private boolean feed(ByteBuffer in) {
+            mReceived = true;
+            while (in.hasRemaining()) {
+                if (mStatusLine == null) {
+                    mHead.append(in.get());
+                    if (endsWithBlankLine(mHead)) {
+                        parseHead();
+                        if (mStatusLine != null && mFraming == NONE) {
+                            return true;
+                        }
+                    } else if (mHead.length() > MAX_HEAD) {
+                        throw new ParseException("Response head too long");
+                    }
+                    continue;
+                }
+                switch (mFraming) {
+                case LENGTH:
+                    int n = (int) Math.min(mRemaining, in.remaining());
+                    appendBody(in, n);
+                    mRemaining -= n;
+                    if (mRemaining == 0) {
+                        return true;
+                    }
+                    break;
+                case CLOSE:
+                    appendBody(in, in.remaining());
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(in)) {
+                        mRemaining = parseChunkSize(mLine);
+                        mFraming = mRemaining == 0 ? TRAILER : CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_DATA:
+                    int c = (int) Math.min(mRemaining, in.remaining());
+                    appendBody(in, c);
+                    mRemaining -= c;
+                    if (mRemaining == 0) {
+                        mFraming = CHUNK_END;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (readLine(in)) {
+                        mFraming = CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILER:
+                    if (readLine(in) && mLine.length() == 0) {
+                        return true;
+                    }
+                    break;
+                default:
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void appendBody(ByteBuffer in, int n) {
+            if (!hold(mBody.length() + n)) {
+                mTooLarge = true;
+            } else {
+                mBody.append(in.array(), in.arrayOffset() + in.position(), n);
+            }
+            in.position(in.position() + n);
+        }
+
+        private void parseHead() {
+            int start = 0;
+            int end;
+            CharArrayBuffer status = null;
+            while ((end = mHead.indexOf((byte) '\n', start, mHead.length())) != -1) {
+                int len = end - start;
+                if (len > 0 && mHead.byteAt(end - 1) == '\r') {
+                    len--;
+                }
+                if (len > 0) {
+                    CharArrayBuffer line = new CharArrayBuffer(len);
+                    line.append(mHead, start, len);
+                    if (status == null) {
+                        status = line;
+                    } else if (line.charAt(0) != ' ' && line.charAt(0) != '\t') {
+                        mHeaders.add(BasicLineParser.INSTANCE.parseHeader(line));
+                    }
+                }
+                start = end + 1;
+            }
+            if (status == null) {
+                throw new ParseException("Missing status line");
+            }
+            StatusLine statusLine = BasicLineParser.INSTANCE.parseStatusLine(status,
+                    new ParserCursor(0, status.length()));
+            mHead.clear();
+            if (statusLine.getStatusCode() < 200) {
+                mHeaders.clear(); // 1xx, the real response follows
+                return;
+            }
+            mStatusLine = statusLine;
+            String connection = getHeader(HttpHeaders.CONNECTION);
+            if (statusLine.getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+                mKeepAlive = connection != null && connection.toLowerCase().contains("keep-alive");
+            } else {
+                mKeepAlive = connection == null || !connection.toLowerCase().contains("close");
+            }
+            String encoding = getHeader(HttpHeaders.TRANSFER_ENCODING);
+            String length = getHeader(HttpHeaders.CONTENT_LENGTH);
+            int code = statusLine.getStatusCode();
+            if (code == 204 || code == 304) {
+                mFraming = NONE;
+            } else if (encoding != null && encoding.toLowerCase().contains("chunked")) {
+                mFraming = CHUNK_SIZE;
+            } else if (length != null) {
+                try {
+                    mRemaining = Long.parseLong(length.trim());
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Bad Content-Length: " + length);
+                }
+                mTooLarge = !hold(mRemaining);
+                mFraming = mRemaining == 0 ? NONE : LENGTH;
+            } else {
+                mFraming = CLOSE;
+                mKeepAlive = false;
+            }
+        }
+
+        // Takes what the body needs from MAX_BUFFERED, or returns false if it cannot have that much.
+        private boolean hold(long length) {
+            long more = length - mHeld;
+            if (more <= 0) {
+                return true;
+            }
+            if (length > MAX_BODY) {
+                return false;
+            }
+            long buffered;
+            do {
+                buffered = mBuffered.get();
+                if (buffered + more > MAX_BUFFERED) {
+                    return false;
+                }
+            } while (!mBuffered.compareAndSet(buffered, buffered + more));
+            mHeld = length;
+            return true;
+        }
+
+        private void release() {
+            mBuffered.addAndGet(-mHeld);
+            mHeld = 0;
+        }
+
+        // Collects one CRLF terminated line into mLine, which holds it without the line end once true comes back.
+        private boolean readLine(ByteBuffer in) {
+            if (mLineComplete) {
+                mLine.clear();
+                mLineComplete = false;
+            }
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b == '\n') {
+                    if (mLine.length() > 0 && mLine.byteAt(mLine.length() - 1) == '\r') {
+                        mLine.setLength(mLine.length() - 1);
+                    }
+                    mLineComplete = true;
+                    return true;
+                }
+                if (mLine.length() > MAX_HEAD) {
+                    throw new ParseException("Chunk line too long");
+                }
+                mLine.append(b);
+            }
+            return false;
+        }
+
+        private String getHeader(String name) {
+            for (Header header : mHeaders) {
+                if (header.getName().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        private HttpResponse toResponse() {
+            BasicHttpResponse response = new BasicHttpResponse(mStatusLine);
+            response.setHeaders(mHeaders.toArray(new Header[mHeaders.size()]));
+            ByteArrayEntity entity = new ByteArrayEntity(mBody.buffer(), 0, mBody.length());
+            entity.setContentType(response.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+            HttpEntity result = entity;
+            String encoding = getHeader(HttpHeaders.CONTENT_ENCODING);
+            if (encoding != null && encoding.trim().equalsIgnoreCase("gzip")) {
+                result = new GzipDecompressingEntity(entity);
+            } else if (encoding != null && encoding.trim().equalsIgnoreCase("deflate")) {
+                result = new DeflateDecompressingEntity(entity);
+            }
+            response.setEntity(result);
+            return response;
+        }
+    }
+
+    private static final class Idle {
+        private final String mRoute;
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private final long mSince;
+
+        private Idle(String route, SocketChannel channel, SelectionKey key, long since) {
+            mRoute = route;
+            mChannel = channel;
+            mKey = key;
+            mSince = since;
+        }
+    }
+
+    private final class Reactor extends Thread {
+        private final Selector mSelector;
+        private final Queue<Exchange> mIncoming = new ConcurrentLinkedQueue<Exchange>();
+        private final Set<Exchange> mActive = new HashSet<Exchange>();
+        private final Map<String, ArrayDeque<Idle>> mIdle = new HashMap<String, ArrayDeque<Idle>>();
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+        private volatile boolean mRunning = true;
+        private long mLastSweep;
+
+        private Reactor(int index) throws IOException {
+            super("nio-fetcher-" + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        private void add(Exchange exchange) {
+            mIncoming.offer(exchange);
+            mSelector.wakeup();
+        }
+
+        private void shutdown() {
+            mRunning = false;
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                try {
+                    mSelector.select(1000);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+                Exchange exchange;
+                while ((exchange = mIncoming.poll()) != null) {
+                    open(exchange);
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof Exchange) {
+                        handle(key, (Exchange) key.attachment());
+                    } else {
+                        // an idle connection only turns readable when the server closes it
+                        dropIdle((Idle) key.attachment());
+                    }
+                }
+                sweep(System.currentTimeMillis());
+            }
+            for (Exchange exchange : new ArrayList<Exchange>(mActive)) {
+                fail(exchange, HttpClientHelper.Listener.Error.UnknowError);
+            }
+            for (ArrayDeque<Idle> idles : mIdle.values()) {
+                for (Idle idle : idles) {
+                    close(idle.mChannel);
+                }
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void open(Exchange exchange) {
+            mActive.add(exchange);
+            exchange.mDeadline = System.currentTimeMillis() + HttpClientHelper.TIMEOUT;
+            Idle idle = takeIdle(exchange.mRoute);
+            try {
+                if (idle != null) {
+                    exchange.mChannel = idle.mChannel;
+                    exchange.mKey = idle.mKey;
+                    exchange.mConnected = true;
+                    exchange.mReused = true;
+                    exchange.mKey.attach(exchange);
+                    exchange.mKey.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    exchange.mChannel = SocketChannel.open();
+                    exchange.mChannel.configureBlocking(false);
+                    exchange.mConnected = exchange.mChannel.connect(exchange.mAddress);
+                    exchange.mKey = exchange.mChannel.register(mSelector,
+                            exchange.mConnected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, exchange);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                fail(exchange, HttpClientHelper.Listener.Error.UnknowError);
+            }
+        }
+
+        private void handle(SelectionKey key, Exchange exchange) {
+            try {
+                if (key.isConnectable()) {
+                    if (exchange.mChannel.finishConnect()) {
+                        exchange.mConnected = true;
+                        exchange.mDeadline = System.currentTimeMillis() + HttpClientHelper.TIMEOUT;
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                } else if (key.isWritable()) {
+                    exchange.mChannel.write(exchange.mRequest);
+                    exchange.mDeadline = System.currentTimeMillis() + HttpClientHelper.TIMEOUT;
+                    if (!exchange.mRequest.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    mBuffer.clear();
+                    int n = exchange.mChannel.read(mBuffer);
+                    if (n < 0) {
+                        endOfStream(exchange);
+                        return;
+                    }
+                    exchange.mDeadline = System.currentTimeMillis() + HttpClientHelper.TIMEOUT;
+                    mBuffer.flip();
+                    boolean done = exchange.feed(mBuffer);
+                    if (exchange.mTooLarge) {
+                        mActive.remove(exchange);
+                        exchange.release();
+                        close(exchange.mChannel);
+                        mFallback.execute(exchange.mClient);
+                    } else if (done) {
+                        // anything after the response means the connection is out of step
+                        complete(exchange, exchange.mKeepAlive && !mBuffer.hasRemaining());
+                    }
+                }
+            } catch (IOException | ParseException e) {
+                if (exchange.mReused && !exchange.mReceived) {
+                    retry(exchange);
+                } else {
+                    e.printStackTrace();
+                    fail(exchange, HttpClientHelper.Listener.Error.UnknowError);
+                }
+            }
+        }
+
+        private void endOfStream(Exchange exchange) {
+            if (exchange.mStatusLine != null && exchange.mFraming == CLOSE) {
+                complete(exchange, false);
+            } else if (exchange.mReused && !exchange.mReceived) {
+                retry(exchange);
+            } else {
+                fail(exchange, HttpClientHelper.Listener.Error.UnknowError);
+            }
+        }
+
+        // a pooled connection the server had already given up on, the request goes again on a new one
+        private void retry(Exchange exchange) {
+            mActive.remove(exchange);
+            exchange.release();
+            close(exchange.mChannel);
+            open(exchange.retry());
+        }
+
+        private void complete(Exchange exchange, boolean keepAlive) {
+            mActive.remove(exchange);
+            if (keepAlive) {
+                putIdle(exchange);
+            } else {
+                close(exchange.mChannel);
+            }
+            deliver(exchange);
+        }
+
+        private void fail(Exchange exchange, HttpClientHelper.Listener.Error error) {
+            mActive.remove(exchange);
+            exchange.release();
+            close(exchange.mChannel);
+            deliverError(exchange.mClient, error);
+        }
+
+        private void sweep(long now) {
+            if (now - mLastSweep < 1000) {
+                return;
+            }
+            mLastSweep = now;
+            for (Exchange exchange : new ArrayList<Exchange>(mActive)) {
+                if (now > exchange.mDeadline) {
+                    fail(exchange, exchange.mConnected ? HttpClientHelper.Listener.Error.SocketTimeout
+                            : HttpClientHelper.Listener.Error.ConnTimeOut);
+                }
+            }
+            for (Iterator<ArrayDeque<Idle>> it = mIdle.values().iterator(); it.hasNext();) {
+                ArrayDeque<Idle> idles = it.next();
+                while (!idles.isEmpty() && now - idles.peekFirst().mSince > IDLE_MILLIS) {
+                    close(idles.pollFirst().mChannel);
+                }
+                if (idles.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void putIdle(Exchange exchange) {
+            ArrayDeque<Idle> idles = mIdle.get(exchange.mRoute);
+            if (idles == null) {
+                idles = new ArrayDeque<Idle>();
+                mIdle.put(exchange.mRoute, idles);
+            }
+            if (idles.size() >= MAX_IDLE_PER_ROUTE) {
+                close(exchange.mChannel);
+                return;
+            }
+            Idle idle = new Idle(exchange.mRoute, exchange.mChannel, exchange.mKey, System.currentTimeMillis());
+            exchange.mKey.attach(idle);
+            exchange.mKey.interestOps(SelectionKey.OP_READ);
+            idles.offerLast(idle);
+        }
+
+        private Idle takeIdle(String route) {
+            ArrayDeque<Idle> idles = mIdle.get(route);
+            Idle idle = idles == null ? null : idles.pollLast();
+            return idle != null && idle.mKey.isValid() ? idle : null;
+        }
+
+        private void dropIdle(Idle idle) {
+            ArrayDeque<Idle> idles = mIdle.get(idle.mRoute);
+            if (idles != null) {
+                idles.remove(idle);
+            }
+            close(idle.mChannel);
+        }
+    }
+
+    private final Reactor[] mReactors;
+    private final AtomicInteger mNextReactor = new AtomicInteger();
+    private final ExecutorService mWorkers;
+    private final ExecutorService mResolvers;
+    private final Executor mFallback;
+    private final AtomicLong mBuffered = new AtomicLong();
+
+    public NioFetcher(int reactors, Executor fallback) throws IOException {
+        mFallback = fallback;
+        mWorkers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        mResolvers = Executors.newFixedThreadPool(RESOLVER_THREADS);
+        mReactors = new Reactor[Math.max(1, reactors)];
+        for (int i = 0; i < mReactors.length; i++) {
+            mReactors[i] = new Reactor(i);
+            mReactors[i].start();
+        }
+    }
+
+    public boolean accepts(String uri) {
+        return uri.regionMatches(true, 0, "http://", 0, "http://".length());
+    }
+
+    // Closes every connection. Exchanges still open are failed, and the workers deliver that before they stop.
+    public void shutdown() {
+        for (Reactor reactor : mReactors) {
+            reactor.shutdown();
+        }
+        for (Reactor reactor : mReactors) {
+            try {
+                reactor.join(SHUTDOWN_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mWorkers.shutdown();
+        mResolvers.shutdown();
+    }
+
+    // Runs a task made by task(), on a few threads that do no more than look up the host.
+    public void execute(Runnable task) {
+        mResolvers.execute(task);
+    }
+
+    // The name lookup blocks, so it runs on the thread of execute() before the request reaches a reactor.
+    public Runnable task(final HttpClientHelper client) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                start(client, client.getUri(), 0);
+            }
+        };
+    }
+
+    private void start(HttpClientHelper client, String uri, int redirects) {
+        try {
+            URI target = new URI(uri);
+            if (!"http".equalsIgnoreCase(target.getScheme())) {
+                mFallback.execute(client);
+                return;
+            }
+            if (target.getHost() == null) {
+                throw new IllegalArgumentException("No host in " + uri);
+            }
+            int port = target.getPort() == -1 ? 80 : target.getPort();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(target.getHost()), port);
+            Reactor reactor = mReactors[(mNextReactor.getAndIncrement() & Integer.MAX_VALUE) % mReactors.length];
+            reactor.add(new Exchange(client, target, address, redirects));
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            error(client, HttpClientHelper.Listener.Error.URISyntaxError);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            error(client, HttpClientHelper.Listener.Error.BadUri);
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            error(client, HttpClientHelper.Listener.Error.UnknowError);
+        }
+    }
+
+    private void deliver(final Exchange exchange) {
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.release();
+                }
+            }
+        });
+    }
+
+    private void respond(Exchange exchange) {
+        HttpClientHelper client = exchange.mClient;
+        int code = exchange.mStatusLine.getStatusCode();
+        String location = exchange.getHeader(HttpHeaders.LOCATION);
+        if (isRedirect(code) && location != null && exchange.mRedirects < HttpClientHelper.MAX_REDIRECTS) {
+            try {
+                start(client, exchange.mUri.resolve(location.trim()).toString(), exchange.mRedirects + 1);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                error(client, HttpClientHelper.Listener.Error.BadUri);
+            }
+            return;
+        }
+        client.countTry();
+        try {
+            if (code == 200) {
+                client.getListener().onHttpSuccess(client, exchange.toResponse(), exchange.mUri.getHost());
+            } else {
+                client.getListener().onError(client, HttpClientHelper.Listener.Error.HttpError);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void deliverError(final HttpClientHelper client, final HttpClientHelper.Listener.Error error) {
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                error(client, error);
+            }
+        });
+    }
+
+    private static void error(HttpClientHelper client, HttpClientHelper.Listener.Error error) {
+        client.countTry();
+        try {
+            client.getListener().onError(client, error);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static boolean endsWithBlankLine(ByteArrayBuffer head) {
+        int n = head.length();
+        return n >= 2 && head.byteAt(n - 1) == '\n'
+                && (head.byteAt(n - 2) == '\n' || (n >= 4 && head.byteAt(n - 2) == '\r' && head.byteAt(n - 3) == '\n'));
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+
+    private static long parseChunkSize(ByteArrayBuffer line) {
+        int end = line.indexOf((byte) ';');
+        String size = new String(line.buffer(), 0, end == -1 ? line.length() : end, ASCII).trim();
+        try {
+            return Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bad chunk size: " + size);
+        }
+    }
+
+    private static String requestHead(URI uri, int port) {
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(uri.getHost());
+        if (port != 80) {
+            sb.append(':').append(port);
+        }
+        sb.append("\r\n");
+        sb.append("Accept-Charset: utf-8\r\n");
+        sb.append("Accept-Encoding: gzip\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        sb.append("User-Agent: ").append(USER_AGENT).append("\r\n\r\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package com.opera.traffic;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.htmlparser.lexer.ByteSource;
+import org.htmlparser.lexer.InputStreamSource;
+import org.htmlparser.lexer.Page;
+import org.htmlparser.lexer.Source;
+
+// What it takes to scan a page for links, kept from one page to the next: the buffer the body is read into, the page
+// with its line index, and the scanner with its lexer and attribute table. Contexts are taken from a small pool and
+// given back when the page is done, so only a page that finds the pool empty pays for setting them up.
+public class ParserContext {
+    private static final int INITIAL_BYTES = 8192;
+    // a buffer grown past this for a big page is not kept for the next one, nor is the lexer that read it
+    private static final int MAX_KEPT_BYTES = 4 << 20;
+    // a body this long is not read whole but lexed as the rest of it streams in
+    private static final int MAX_BUFFERED_BYTES = 8 << 20;
+    // and cut here, the lexer keeps every character it has read in a buffer that doubles, which this keeps at 32 M
+    private static final long MAX_STREAMED_BYTES = 30L << 20;
+
+    private static final int MAX_POOLED = 16;
+
+    private static final Queue<ParserContext> sPool = new ConcurrentLinkedQueue<ParserContext>();
+
+    private byte[] mBody = new byte[INITIAL_BYTES];
+    private int mLength;
+    // what is left of a body too long to be read whole, or null
+    private InputStream mRest;
+    private Page mPage;
+    private LinkScanner mScanner;
+
+    private ParserContext() {
+    }
+
+    // A context for one page, to be given back with release when it is done.
+    public static ParserContext take() {
+        ParserContext context = sPool.poll();
+        return context != null ? context : new ParserContext();
+    }
+
+    public static void release(ParserContext context) {
+        if (context.mRest != null || context.mLength > MAX_KEPT_BYTES) {
+            // the lexer still holds what it decoded of the big page
+            context.mPage = null;
+            context.mScanner = null;
+        }
+        if (context.mBody.length > MAX_KEPT_BYTES) {
+            context.mBody = new byte[INITIAL_BYTES];
+        }
+        context.mLength = 0;
+        context.mRest = null;
+        if (sPool.size() < MAX_POOLED) {
+            sPool.offer(context);
+        }
+    }
+
+    // Reads stream to its end as the body of the next page, or returns false once MAX_BUFFERED_BYTES are read. The
+    // body is then only the start of the page, and scan reads the rest from stream.
+    public boolean read(InputStream stream) throws IOException {
+        mLength = 0;
+        mRest = null;
+        for (int n; (n = stream.read(mBody, mLength, mBody.length - mLength)) != -1;) {
+            mLength += n;
+            if (mLength == mBody.length) {
+                if (mLength >= MAX_BUFFERED_BYTES) {
+                    mRest = stream;
+                    return false;
+                }
+                mBody = Arrays.copyOf(mBody, Math.min(mBody.length * 2, MAX_BUFFERED_BYTES));
+            }
+        }
+        return true;
+    }
+
+    // Only valid up to getLength() and until the next read, the start of the page when read returned false.
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    // A scanner over the body read last, from offset on, with relative links resolved against url. It is the same
+    // scanner every time and is done with when the next one is asked for.
+    public LinkScanner scan(int offset, String charset, String url) throws UnsupportedEncodingException {
+        Source source;
+        if (mRest != null) {
+            InputStream body = new SequenceInputStream(new ByteArrayInputStream(mBody, offset, mLength - offset),
+                    new Bounded(mRest, MAX_STREAMED_BYTES - mLength, url));
+            // markable, so InputStreamSource does not wrap it in a copy of its own
+            source = new InputStreamSource(new BufferedInputStream(body), charset);
+        } else if (ByteSource.isSupported(charset)) {
+            // the lexer reads the bytes themselves when the markup is plain ASCII in them
+            source = new ByteSource(mBody, offset, mLength - offset, charset);
+        } else {
+            source = new InputStreamSource(new ByteArrayInputStream(mBody, offset, mLength - offset), charset);
+        }
+        if (mPage == null) {
+            mPage = new Page(source);
+            mScanner = new LinkScanner(mPage);
+        } else {
+            mPage.reset(source);
+            mScanner.reset(mPage);
+        }
+        mPage.setUrl(url);
+        return mScanner;
+    }
+
+    // Ends after a number of bytes, as if the stream did, and says so when there was more.
+    private static final class Bounded extends FilterInputStream {
+        private final String mUrl;
+        private long mLeft;
+        private boolean mChecked;
+
+        Bounded(InputStream in, long limit, String url) {
+            super(in);
+            mLeft = limit;
+            mUrl = url;
+        }
+
+        private void cut() throws IOException {
+            if (!mChecked) {
+                mChecked = true;
+                if (in.read() != -1) {
+                    System.err.println("Page cut at " + (MAX_STREAMED_BYTES >> 20) + " MB, links after that are lost: "
+                            + mUrl);
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mLeft <= 0) {
+                cut();
+                return -1;
+            }
+            int b = in.read();
+            mLeft -= b != -1 ? 1 : 0;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mLeft <= 0) {
+                cut();
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, mLeft));
+            mLeft -= n != -1 ? n : 0;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, mLeft));
+            mLeft -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mLeft);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.opera.traffic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+
+// A download in progress. The bytes go to name.part and the segments done so far to name.part.meta, together with
+// the ETag and Last-Modified they came with, so a later try only asks for what is missing.
+public class PartFile {
+    private static final long SAVE_EVERY = 1024 * 1024;
+
+    private final File mFile;
+    private final File mPart;
+    private final File mMeta;
+    private String mETag;
+    private String mLastModified;
+    private long mLength;
+    private long[] mStarts;
+    private long[] mEnds;
+    private long[] mDone;
+    private long mUnsaved;
+    private FileChannel mChannel;
+
+    private PartFile(File file) {
+        mFile = file;
+        mPart = new File(file.getPath() + ".part");
+        mMeta = new File(file.getPath() + ".part.meta");
+    }
+
+    // Splits length into segments of the same size and preallocates the part file.
+    public static PartFile create(File file, HttpResponse response, long length, int segments) throws IOException {
+        PartFile part = new PartFile(file);
+        part.mETag = getHeader(response, HttpHeaders.ETAG);
+        part.mLastModified = getHeader(response, HttpHeaders.LAST_MODIFIED);
+        part.mLength = length;
+        part.mStarts = new long[segments];
+        part.mEnds = new long[segments];
+        part.mDone = new long[segments];
+        long size = (length + segments - 1) / segments;
+        for (int i = 0; i < segments; i++) {
+            part.mStarts[i] = i * size;
+            part.mEnds[i] = Math.min(length, (i + 1) * size) - 1;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(part.mPart, "rw")) {
+            raf.setLength(length);
+        }
+        part.save();
+        return part;
+    }
+
+    // Returns null when there is no usable record of an earlier try.
+    public static PartFile load(File file) {
+        PartFile part = new PartFile(file);
+        if (!part.mMeta.exists() || !part.mPart.exists()) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try (InputStream is = new FileInputStream(part.mMeta)) {
+            meta.load(is);
+            part.mETag = meta.getProperty("etag");
+            part.mLastModified = meta.getProperty("last-modified");
+            part.mLength = Long.parseLong(meta.getProperty("length"));
+            String[] segments = meta.getProperty("segments").split(",");
+            part.mStarts = new long[segments.length];
+            part.mEnds = new long[segments.length];
+            part.mDone = new long[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                String[] fields = segments[i].split(":");
+                part.mStarts[i] = Long.parseLong(fields[0]);
+                part.mEnds[i] = Long.parseLong(fields[1]);
+                part.mDone[i] = Long.parseLong(fields[2]);
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return part.mPart.length() == part.mLength ? part : null;
+    }
+
+    // Forgets an earlier try at file, whose bytes a whole new response has replaced.
+    public static void discard(File file) {
+        PartFile part = new PartFile(file);
+        part.mMeta.delete();
+        part.mPart.delete();
+    }
+
+    // The channel the segments are written through, forced to disk before every save.
+    public FileChannel open() throws IOException {
+        mChannel = FileChannel.open(mPart.toPath(), StandardOpenOption.WRITE);
+        return mChannel;
+    }
+
+    public File getPart() {
+        return mPart;
+    }
+
+    public int getSegmentCount() {
+        return mStarts.length;
+    }
+
+    public long getEnd(int segment) {
+        return mEnds[segment];
+    }
+
+    public synchronized long getNext(int segment) {
+        return mStarts[segment] + mDone[segment];
+    }
+
+    public synchronized boolean isDone(int segment) {
+        return getNext(segment) > mEnds[segment];
+    }
+
+    // the first byte not on disk yet, or -1 when the file is complete
+    public synchronized long getFirstMissing() {
+        for (int i = 0; i < mStarts.length; i++) {
+            if (!isDone(i)) {
+                return getNext(i);
+            }
+        }
+        return -1;
+    }
+
+    // the segment whose next byte is at position, or -1
+    public synchronized int segmentAt(long position) {
+        for (int i = 0; i < mStarts.length; i++) {
+            if (!isDone(i) && getNext(i) == position) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ETag is the strong one, If-Range takes either
+    public String getValidator() {
+        return mETag != null ? mETag : mLastModified;
+    }
+
+    // A part file only carries on from a response for the very same entity.
+    public boolean matches(HttpResponse response, long length) {
+        if (length != mLength || getValidator() == null) {
+            return false;
+        }
+        String etag = getHeader(response, HttpHeaders.ETAG);
+        if (mETag != null) {
+            return mETag.equals(etag);
+        }
+        return mLastModified.equals(getHeader(response, HttpHeaders.LAST_MODIFIED));
+    }
+
+    public void advance(int segment, long bytes) throws IOException {
+        boolean save;
+        synchronized (this) {
+            mDone[segment] += bytes;
+            mUnsaved += bytes;
+            save = mUnsaved >= SAVE_EVERY;
+        }
+        if (save) {
+            save();
+        }
+    }
+
+    // The bytes are written before they are counted and forced to disk before the record is, so it never claims more
+    // than the part file holds, not even after a crash of the system.
+    public synchronized void save() throws IOException {
+        if (mChannel != null && mChannel.isOpen()) {
+            mChannel.force(false);
+        }
+        Properties meta = new Properties();
+        if (mETag != null) {
+            meta.setProperty("etag", mETag);
+        }
+        if (mLastModified != null) {
+            meta.setProperty("last-modified", mLastModified);
+        }
+        meta.setProperty("length", Long.toString(mLength));
+        StringBuilder segments = new StringBuilder();
+        for (int i = 0; i < mStarts.length; i++) {
+            if (i > 0) {
+                segments.append(',');
+            }
+            segments.append(mStarts[i]).append(':').append(mEnds[i]).append(':').append(mDone[i]);
+        }
+        meta.setProperty("segments", segments.toString());
+        File tmp = new File(mMeta.getPath() + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            meta.store(os, null);
+        }
+        if (!tmp.renameTo(mMeta)) {
+            mMeta.delete();
+            if (!tmp.renameTo(mMeta)) {
+                throw new IOException("Cannot write " + mMeta);
+            }
+        }
+        mUnsaved = 0;
+    }
+
+    // Moves the finished part over the target name and forgets the record.
+    public void complete() throws IOException {
+        if (mFile.exists() && !mFile.delete()) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+        if (!mPart.renameTo(mFile)) {
+            throw new IOException("Cannot rename " + mPart + " to " + mFile);
+        }
+        mMeta.delete();
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+}
@@ -0,0 +1,119 @@
+package com.opera.traffic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A Bloom filter of urls that keeps its false positive rate however many urls come. It starts with one stage sized
+// for the expected count and adds a stage twice as large with half the rate each time the last stage is full, so the
+// rates of all stages together stay under the one asked for. About ten bits a url at one percent. Not thread safe,
+// the caller holds its own lock.
+public class SeenFilter {
+    private static final class Stage {
+        private final long[] mBits;
+        private final long mBitCount;
+        private final int mHashes;
+        private final long mCapacity;
+        private final double mRate;
+        private long mCount;
+
+        private Stage(long capacity, double rate) {
+            double ln2 = Math.log(2);
+            long bits = (long) Math.ceil(-capacity * Math.log(rate) / (ln2 * ln2));
+            mBits = new long[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) >>> 6))];
+            mBitCount = mBits.length * 64L;
+            mHashes = (int) Math.max(1, Math.round((double) mBitCount / capacity * ln2));
+            mCapacity = capacity;
+            mRate = rate;
+        }
+
+        private boolean contains(long h1, long h2) {
+            for (int i = 0; i < mHashes; i++) {
+                long bit = ((h1 + i * h2) >>> 1) % mBitCount;
+                if ((mBits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void add(long h1, long h2) {
+            for (int i = 0; i < mHashes; i++) {
+                long bit = ((h1 + i * h2) >>> 1) % mBitCount;
+                mBits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            mCount++;
+        }
+    }
+
+    private final long mExpected;
+    private final double mRate;
+    private final List<Stage> mStages = new ArrayList<Stage>();
+
+    public SeenFilter(long expected, double rate) {
+        if (expected <= 0 || rate <= 0 || rate >= 1) {
+            throw new IllegalArgumentException("Bad seen filter size " + expected + " or rate " + rate);
+        }
+        mExpected = expected;
+        mRate = rate;
+        clear();
+    }
+
+    // Adds url and returns true when it was certainly not added before.
+    public boolean add(String url) {
+        long h1 = hash(url);
+        long h2 = mix(h1) | 1;
+        for (Stage stage : mStages) {
+            if (stage.contains(h1, h2)) {
+                return false;
+            }
+        }
+        Stage last = mStages.get(mStages.size() - 1);
+        if (last.mCount >= last.mCapacity) {
+            last = new Stage(last.mCapacity * 2, last.mRate / 2);
+            mStages.add(last);
+        }
+        last.add(h1, h2);
+        return true;
+    }
+
+    public void clear() {
+        mStages.clear();
+        mStages.add(new Stage(mExpected, mRate / 2));
+    }
+
+    public long getBitCount() {
+        long bits = 0;
+        for (Stage stage : mStages) {
+            bits += stage.mBitCount;
+        }
+        return bits;
+    }
+
+    public boolean mightContain(String url) {
+        long h1 = hash(url);
+        long h2 = mix(h1) | 1;
+        for (Stage stage : mStages) {
+            if (stage.contains(h1, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 64 bit FNV-1a
+    private static long hash(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // the SplitMix64 finalizer, a second hash independent enough of the first for double hashing
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
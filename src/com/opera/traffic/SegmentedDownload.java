@@ -0,0 +1,191 @@
+package com.opera.traffic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+// Downloads a file whose server takes byte ranges. Large files are split into segments fetched in parallel with Range
+// requests into a preallocated part file, and the response that is already open supplies whichever segment it starts
+// at. What is done is recorded in a PartFile, so a failed or interrupted download carries on where it stopped.
+public class SegmentedDownload {
+    // also the most connections one download holds at once
+    static final int SEGMENTS = 4;
+    private static final long MIN_SEGMENT = 1024 * 1024;
+
+    private final String mUri;
+    private final File mFile;
+    private final ExecutorService mExecutor;
+
+    public SegmentedDownload(String uri, File file, ExecutorService executor) {
+        mUri = uri;
+        mFile = file;
+        mExecutor = executor;
+    }
+
+    // Only a body whose length is known, that is not being decoded and whose server takes byte ranges qualifies.
+    public static boolean isSegmentable(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        Header ranges = response.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+        boolean partial = response.getStatusLine().getStatusCode() == 206;
+        return entity != null && entity.isStreaming() && getLength(response) > 0
+                && (partial || (ranges != null && ranges.getValue().trim().equalsIgnoreCase("bytes")))
+                && response.getFirstHeader(HttpHeaders.CONTENT_ENCODING) == null;
+    }
+
+    // Makes a retry of the client ask only for the bytes still missing from file.
+    public static void prepareRetry(HttpClientHelper client, File file) {
+        PartFile part = PartFile.load(file);
+        if (part != null && part.getFirstMissing() != -1) {
+            client.setRange(part.getFirstMissing(), part.getValidator());
+        }
+    }
+
+    // Returns once every byte is on disk, any segment that fails fails the whole download.
+    public void run(HttpClientHelper client, HttpResponse response) throws IOException {
+        long length = getLength(response);
+        PartFile part = PartFile.load(mFile);
+        if (part == null || !part.matches(response, length)) {
+            int count = (int) Math.max(1, Math.min(SEGMENTS, length / MIN_SEGMENT));
+            part = PartFile.create(mFile, response, length, count);
+        }
+        int streamed = part.segmentAt(getStart(response));
+        // one channel for every segment, positional writes do not share a file pointer
+        try (FileChannel channel = part.open()) {
+            try {
+                download(client, response, part, streamed, channel);
+            } finally {
+                part.save();
+            }
+        }
+        part.complete();
+    }
+
+    private void download(HttpClientHelper client, HttpResponse response, final PartFile part, int streamed,
+            final FileChannel channel) throws IOException {
+        final String validator = part.getValidator();
+
+        List<Future<Void>> segments = new ArrayList<Future<Void>>();
+        for (int i = 0; i < part.getSegmentCount(); i++) {
+            if (i == streamed || part.isDone(i)) {
+                continue;
+            }
+            final int segment = i;
+            segments.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    fetchRange(part, segment, validator, channel);
+                    return null;
+                }
+            }));
+        }
+
+        IOException failure = null;
+        try {
+            if (streamed != -1) {
+                copy(response.getEntity().getContent(), part, streamed, channel);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            // anything else in this body belongs to other segments or is already on disk
+            client.abort();
+        }
+        for (Future<Void> segment : segments) {
+            try {
+                segment.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(
+                            e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new IOException(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void fetchRange(PartFile part, int segment, String validator, FileChannel channel) throws IOException {
+        long start = part.getNext(segment);
+        long end = part.getEnd(segment);
+        HttpGet request = new HttpGet(mUri);
+        request.setHeader(HttpHeaders.RANGE, "bytes=" + start + "-" + end);
+        request.setHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
+        if (validator != null) {
+            // a file that changed since the first response comes back whole, not as a range
+            request.setHeader(HttpHeaders.IF_RANGE, validator);
+        }
+        HttpResponse response = HttpClientHelper.execute(request);
+        try {
+            if (response.getStatusLine().getStatusCode() != 206 || getStart(response) != start) {
+                throw new IOException("No range " + start + "-" + end + " for " + mUri + ": "
+                        + response.getStatusLine());
+            }
+            copy(response.getEntity().getContent(), part, segment, channel);
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            request.releaseConnection();
+        }
+    }
+
+    private void copy(InputStream is, final PartFile part, final int segment, FileChannel channel)
+            throws IOException {
+        long position = part.getNext(segment);
+        FileSink.copy(is, channel, position, part.getEnd(segment) - position + 1, new FileSink.Progress() {
+            @Override
+            public void written(long bytes) throws IOException {
+                part.advance(segment, bytes);
+            }
+        });
+    }
+
+    // the full entity length, from Content-Range when the response is partial
+    private static long getLength(HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() == 206) {
+            Header range = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+            String value = range != null ? range.getValue() : "";
+            int slash = value.lastIndexOf('/');
+            try {
+                return slash == -1 ? -1 : Long.parseLong(value.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        HttpEntity entity = response.getEntity();
+        return entity != null ? entity.getContentLength() : -1;
+    }
+
+    private static long getStart(HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() != 206) {
+            return 0;
+        }
+        Header range = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        String value = range != null ? range.getValue().trim() : "";
+        int dash = value.indexOf('-');
+        if (!value.regionMatches(true, 0, "bytes ", 0, 6) || dash == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.opera.traffic;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Brings every spelling of an absolute http or https url to one form before it is looked up in the pool: lower case
+// scheme and host, no default port, an empty path made "/", "." and ".." segments resolved, escapes of unreserved
+// characters decoded and the rest in upper case hex, no fragment, tracking parameters dropped and the remaining
+// parameters in name order. One pass over the url into one builder; a url that is canonical already comes back as
+// the same string.
+public class UrlCanonicalizer {
+    private static final String[] TRACKING = { "utm_*", "fbclid", "gclid", "dclid", "msclkid", "yclid", "mc_cid",
+            "mc_eid", "_ga", "_hsenc", "_hsmi" };
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    // parameter names to drop, a trailing * matches any name with that prefix
+    private final List<String> mStripped = new CopyOnWriteArrayList<String>(Arrays.asList(TRACKING));
+    private volatile boolean mSortQuery = true;
+
+    public void addStrippedParam(String name) {
+        if (!mStripped.contains(name)) {
+            mStripped.add(name);
+        }
+    }
+
+    public void clearStrippedParams() {
+        mStripped.clear();
+    }
+
+    // Parameters of the same name keep their order, only names are compared.
+    public void setSortQuery(boolean sort) {
+        mSortQuery = sort;
+    }
+
+    // Returns null for anything but a well formed absolute http or https url.
+    public String canonicalize(String url) {
+        int colon = url.indexOf(':');
+        boolean https;
+        if (colon == 4 && url.regionMatches(true, 0, "http", 0, 4)) {
+            https = false;
+        } else if (colon == 5 && url.regionMatches(true, 0, "https", 0, 5)) {
+            https = true;
+        } else {
+            return null;
+        }
+        if (!url.startsWith("//", colon + 1)) {
+            return null;
+        }
+        int length = url.length();
+        int authority = colon + 3;
+        int fragment = indexOf(url, authority, length, '#');
+        int query = indexOf(url, authority, fragment, '?');
+        int path = indexOf(url, authority, query, '/');
+
+        StringBuilder sb = new StringBuilder(length + 1);
+        sb.append(https ? "https://" : "http://");
+        if (!appendAuthority(sb, url, authority, path, https ? 443 : 80)) {
+            return null;
+        }
+        appendPath(sb, url, path, query);
+        if (query < fragment) {
+            appendQuery(sb, url, query + 1, fragment);
+        }
+        return sb.length() == length && url.contentEquals(sb) ? url : sb.toString();
+    }
+
+    private static boolean appendAuthority(StringBuilder sb, String url, int start, int end, int defaultPort) {
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            sb.append(url, start, at + 1);
+            start = at + 1;
+        }
+        // the port colon is the last one, unless it is inside an IPv6 literal
+        int colon = url.lastIndexOf(':', end - 1);
+        if (colon < start || url.lastIndexOf(']', end - 1) > colon) {
+            colon = end;
+        }
+        int hostEnd = colon;
+        if (hostEnd > start && url.charAt(hostEnd - 1) == '.') {
+            hostEnd--;
+        }
+        if (hostEnd == start) {
+            return false;
+        }
+        int upper = start;
+        while (upper < hostEnd && (url.charAt(upper) < 'A' || url.charAt(upper) > 'Z')) {
+            upper++;
+        }
+        sb.append(url, start, upper);
+        for (int i = upper; i < hostEnd; i++) {
+            char c = url.charAt(i);
+            sb.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+        }
+        int port = 0;
+        for (int i = colon + 1; i < end; i++) {
+            char c = url.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            port = port * 10 + (c - '0');
+            if (port > 65535) {
+                return false;
+            }
+        }
+        if (colon + 1 < end && port != defaultPort) {
+            sb.append(':').append(port);
+        }
+        return true;
+    }
+
+    // Copies the text between escapes in one piece.
+    private static void appendEscaped(StringBuilder sb, String url, int start, int end) {
+        int copied = start;
+        for (int i = indexOf(url, start, end, '%'); i < end; i = indexOf(url, i + 1, end, '%')) {
+            int value = hexValue(url, i + 1, end);
+            if (value == -1) {
+                continue;
+            }
+            sb.append(url, copied, i);
+            if (isUnreserved(value)) {
+                sb.append((char) value);
+            } else {
+                sb.append('%').append(HEX[value >> 4]).append(HEX[value & 15]);
+            }
+            i += 2;
+            copied = i + 1;
+        }
+        sb.append(url, copied, end);
+    }
+
+    // Copies a path with its dot segments resolved as RFC 3986 does.
+    private static void appendPath(StringBuilder sb, String url, int start, int end) {
+        int base = sb.length();
+        for (int i = start; i < end;) {
+            int next = indexOf(url, i + 1, end, '/');
+            boolean last = next == end;
+            int segment = next - i - 1;
+            if (segment == 1 && url.charAt(i + 1) == '.') {
+                if (last) {
+                    sb.append('/');
+                }
+            } else if (segment == 2 && url.charAt(i + 1) == '.' && url.charAt(i + 2) == '.') {
+                int cut = sb.lastIndexOf("/");
+                sb.setLength(Math.max(base, cut));
+                if (last) {
+                    sb.append('/');
+                }
+            } else {
+                sb.append('/');
+                appendEscaped(sb, url, i + 1, next);
+            }
+            i = next;
+        }
+        if (sb.length() == base) {
+            sb.append('/');
+        }
+    }
+
+    private void appendQuery(StringBuilder sb, String url, int start, int end) {
+        // the start and end of every parameter that is kept
+        int[] params = new int[16];
+        int count = 0;
+        for (int i = start; i < end;) {
+            int next = indexOf(url, i, end, '&');
+            if (next > i && !isStripped(url, i, indexOf(url, i, next, '='))) {
+                if (count * 2 == params.length) {
+                    params = Arrays.copyOf(params, params.length * 2);
+                }
+                params[count * 2] = i;
+                params[count * 2 + 1] = next;
+                count++;
+            }
+            i = next + 1;
+        }
+        if (mSortQuery) {
+            // an insertion sort, stable and with nothing to allocate for the handful of parameters a url has
+            for (int i = 1; i < count; i++) {
+                int s = params[i * 2];
+                int e = params[i * 2 + 1];
+                int j = i - 1;
+                while (j >= 0 && compareNames(url, params[j * 2], params[j * 2 + 1], s, e) > 0) {
+                    params[j * 2 + 2] = params[j * 2];
+                    params[j * 2 + 3] = params[j * 2 + 1];
+                    j--;
+                }
+                params[j * 2 + 2] = s;
+                params[j * 2 + 3] = e;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? '?' : '&');
+            appendEscaped(sb, url, params[i * 2], params[i * 2 + 1]);
+        }
+    }
+
+    private static int compareNames(String url, int s1, int e1, int s2, int e2) {
+        e1 = indexOf(url, s1, e1, '=');
+        e2 = indexOf(url, s2, e2, '=');
+        int n = Math.min(e1 - s1, e2 - s2);
+        for (int i = 0; i < n; i++) {
+            int d = url.charAt(s1 + i) - url.charAt(s2 + i);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return (e1 - s1) - (e2 - s2);
+    }
+
+    // the value of the two hex digits at i, or -1
+    private static int hexValue(String url, int i, int end) {
+        if (i + 1 >= end) {
+            return -1;
+        }
+        int high = Character.digit(url.charAt(i), 16);
+        int low = Character.digit(url.charAt(i + 1), 16);
+        return high == -1 || low == -1 ? -1 : high << 4 | low;
+    }
+
+    // the first c in url between start and end, or end
+    private static int indexOf(String url, int start, int end, char c) {
+        int i = url.indexOf(c, start);
+        return i == -1 || i > end ? end : i;
+    }
+
+    private boolean isStripped(String url, int start, int end) {
+        int length = end - start;
+        for (String name : mStripped) {
+            if (name.endsWith("*")) {
+                if (length >= name.length() - 1 && url.regionMatches(start, name, 0, name.length() - 1)) {
+                    return true;
+                }
+            } else if (length == name.length() && url.regionMatches(start, name, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnreserved(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+                || c == '_' || c == '~';
+    }
+}